@@ -3,4 +3,4 @@ if ! [ -d classes ];
 then
    mkdir classes
 fi
-javac -cp . -d classes ir/Engine.java ir/Tokenizer.java ir/TokenTest.java ir/Index.java ir/Indexer.java ir/Searcher.java ir/HashedIndex.java ir/PersistentHashedIndex.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/PostingsList.java ir/PostingsEntry.java ir/SearchGUI.java ir/HITSRanker.java ir/KGramIndex.java ir/KGramPostingsEntry.java
+javac -cp . -d classes ir/Engine.java ir/Tokenizer.java ir/TokenTest.java ir/Index.java ir/Indexer.java ir/Searcher.java ir/HashedIndex.java ir/PersistentHashedIndex.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/PostingsList.java ir/PostingsEntry.java ir/CompressedPostings.java ir/VByte.java ir/ForwardIndex.java ir/TermDictionary.java ir/IndexingPipeline.java ir/PostingsCodec.java ir/MappedFile.java ir/PerfectHash.java ir/PostingsCache.java ir/BloomFilter.java ir/SegmentedIndex.java ir/DocumentManifest.java ir/DocInfoStore.java ir/DocumentMap.java ir/IndexSnapshot.java ir/MappedKGramIndex.java ir/DocIterator.java ir/QueryPlanner.java ir/SearchGUI.java ir/HITSRanker.java ir/KGramIndex.java ir/KGramPostingsEntry.java
@@ -0,0 +1,109 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+
+/**
+ * A Bloom filter over a set of terms: <code>mightContain</code> is true
+ * for every term in the set, and false for all but about 1% of the other
+ * terms. It uses ten bits and seven hash functions per term; the seven bit
+ * indices are derived from one 64-bit hash by double hashing.
+ */
+public class BloomFilter {
+
+    /**
+     * "IRBF" in ASCII.
+     */
+    public static final int MAGIC = 0x49524246;
+
+    public static final int VERSION = 1;
+
+    private static final int BITS_PER_TERM = 10;
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+    private final long numberOfBits;
+
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+        this.numberOfBits = 64L * bits.length;
+    }
+
+    /**
+     * Builds a filter for the given terms.
+     */
+    public static BloomFilter build(String[] terms) {
+        long words = Math.max(1, ((long) terms.length * BITS_PER_TERM + 63) / 64);
+        BloomFilter filter = new BloomFilter(new long[(int) words]);
+        for (String term : terms) {
+            filter.add(term);
+        }
+        return filter;
+    }
+
+    private void add(String term) {
+        long hash = hash(term);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % numberOfBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the term is certainly not in the set.
+     */
+    public boolean mightContain(String term) {
+        long hash = hash(term);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % numberOfBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(String term) {
+        long h = 0x84222325CBF29CE4L;
+        for (int i = 0; i < term.length(); i++) {
+            h = (h ^ term.charAt(i)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void write(File file) throws IOException {
+        try (FileOutputStream fout = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+            out.flush();
+            fout.getChannel().force(false);
+        }
+    }
+
+    public static BloomFilter read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Bloom filter file " + file + " has the wrong format; the index has to be rebuilt.");
+            }
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(bits);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A postings list kept in a growable byte buffer instead of one object per
+ * posting. Postings are grouped per document: each document is stored as the
+ * gap to the previous docID, the term frequency, and then the positions as
+ * gaps to the previous position. All numbers are variable-byte encoded.
+ * <p>
+ * The positions of the last document are kept in a small int buffer until a
+ * posting for another document arrives (or the list is sealed), since the
+ * term frequency has to be written before them.
+ */
+public class CompressedPostings {
+
+    /**
+     * The encoded postings.
+     */
+    private byte[] data = new byte[8];
+
+    /**
+     * Number of bytes used in <code>data</code>.
+     */
+    private int length = 0;
+
+    /**
+     * Number of documents encoded in <code>data</code>.
+     */
+    private int docCount = 0;
+
+    /**
+     * Number of positions encoded in <code>data</code>.
+     */
+    private int positionCount = 0;
+
+    /**
+     * The docID of the last encoded document, needed to compute the gaps.
+     */
+    private int lastDocID = 0;
+
+    /**
+     * The document still being added to, and its positions.
+     */
+    private int pendingDocID = -1;
+    private int[] pending = new int[2];
+    private int pendingCount = 0;
+
+    /**
+     * Appends an occurrence of the term. DocIDs must be non-decreasing, and
+     * offsets must be increasing within a document.
+     */
+    public void add(int docID, int offset) {
+        if (pendingCount > 0 && docID != pendingDocID) {
+            flush();
+        }
+        if (pending == null) {
+            pending = new int[2];
+        }
+        pendingDocID = docID;
+        pending = VByte.ensureCapacity(pending, pendingCount);
+        pending[pendingCount++] = offset;
+    }
+
+    /**
+     * Encodes the pending document.
+     */
+    private void flush() {
+        data = VByte.ensureCapacity(data, length, (pendingCount + 2) * VByte.MAX_BYTES);
+        length = VByte.write(data, length, pendingDocID - lastDocID);
+        length = VByte.write(data, length, pendingCount);
+        int lastPosition = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            length = VByte.write(data, length, pending[i] - lastPosition);
+            lastPosition = pending[i];
+        }
+        lastDocID = pendingDocID;
+        docCount++;
+        positionCount += pendingCount;
+        pendingCount = 0;
+    }
+
+    /**
+     * Encodes the pending document and releases the spare capacity. More
+     * postings may still be added afterwards.
+     */
+    public void seal() {
+        if (pendingCount > 0) {
+            flush();
+        }
+        pending = null;
+        if (data.length > length) {
+            byte[] trimmed = new byte[length];
+            System.arraycopy(data, 0, trimmed, 0, length);
+            data = trimmed;
+        }
+    }
+
+    /**
+     * Appends all postings of <code>other</code>, whose docIDs must be larger
+     * than the docIDs in this list. Only the first docID gap is re-encoded;
+     * the rest of the encoded data is copied as it is.
+     */
+    public void append(CompressedPostings other) {
+        if (pendingCount > 0) {
+            flush();
+        }
+        if (other.pendingCount > 0) {
+            other.flush();
+        }
+        if (other.docCount == 0) {
+            return;
+        }
+        VByte.Reader in = new VByte.Reader(other.data, 0);
+        int firstDocID = in.readInt();
+        int rest = other.length - in.position();
+        data = VByte.ensureCapacity(data, length, VByte.MAX_BYTES + rest);
+        length = VByte.write(data, length, firstDocID - lastDocID);
+        System.arraycopy(other.data, in.position(), data, length, rest);
+        length += rest;
+        docCount += other.docCount;
+        positionCount += other.positionCount;
+        lastDocID = other.lastDocID;
+    }
+
+    /**
+     * A new list with the postings of the documents that are not in
+     * <code>deleted</code>.
+     */
+    public CompressedPostings without(BitSet deleted) {
+        if (pendingCount > 0) {
+            flush();
+        }
+        CompressedPostings kept = new CompressedPostings();
+        VByte.Reader in = new VByte.Reader(data, 0);
+        int docID = 0;
+        for (int i = 0; i < docCount; i++) {
+            docID += in.readInt();
+            int tf = in.readInt();
+            int position = 0;
+            for (int j = 0; j < tf; j++) {
+                position += in.readInt();
+                if (!deleted.get(docID)) {
+                    kept.add(docID, position);
+                }
+            }
+        }
+        kept.seal();
+        return kept;
+    }
+
+    /**
+     * Writes the postings to <code>out</code>, in a form that
+     * <code>read</code> restores.
+     */
+    public void write(DataOutput out) throws IOException {
+        if (pendingCount > 0) {
+            flush();
+        }
+        out.writeInt(docCount);
+        out.writeInt(positionCount);
+        out.writeInt(lastDocID);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    /**
+     * Reads postings written by <code>write</code>.
+     */
+    public static CompressedPostings read(DataInput in) throws IOException {
+        CompressedPostings postings = new CompressedPostings();
+        postings.docCount = in.readInt();
+        postings.positionCount = in.readInt();
+        postings.lastDocID = in.readInt();
+        postings.length = in.readInt();
+        postings.data = new byte[postings.length];
+        in.readFully(postings.data);
+        postings.pending = null;
+        return postings;
+    }
+
+    /**
+     * Reads postings written by <code>write</code> at the position of the
+     * buffer, and moves the position past them.
+     */
+    public static CompressedPostings read(ByteBuffer in) {
+        CompressedPostings postings = new CompressedPostings();
+        postings.docCount = in.getInt();
+        postings.positionCount = in.getInt();
+        postings.lastDocID = in.getInt();
+        postings.length = in.getInt();
+        postings.data = new byte[postings.length];
+        in.get(postings.data);
+        postings.pending = null;
+        return postings;
+    }
+
+    /**
+     * Encodes the postings as a record of the persistent data file, see
+     * PostingsCodec.
+     */
+    public byte[] encode() {
+        if (pendingCount > 0) {
+            flush();
+        }
+        return PostingsCodec.encode(data, length, docCount, positionCount);
+    }
+
+    /**
+     * Wraps a record of the persistent data file, so that other postings can
+     * be appended to it.
+     */
+    public static CompressedPostings fromRecord(byte[] record) {
+        CompressedPostings postings = new CompressedPostings();
+        VByte.Reader in = new VByte.Reader(record, 0);
+        postings.docCount = in.readInt();
+        postings.positionCount = in.readInt();
+        // the last docID is the sum of the skip table's docID gaps
+        int blocks = in.readInt();
+        int docID = 0;
+        for (int b = 0; b < blocks; b++) {
+            docID += in.readInt();
+            in.readInt();
+        }
+        int start = in.position();
+        postings.lastDocID = docID;
+        postings.length = record.length - start;
+        postings.data = Arrays.copyOfRange(record, start, record.length);
+        postings.pending = null;
+        return postings;
+    }
+
+    /**
+     * Approximate number of bytes of memory taken by this list.
+     */
+    public int memorySize() {
+        return 48 + data.length + (pending == null ? 0 : 4 * pending.length);
+    }
+
+    /**
+     * Number of documents in this list.
+     */
+    public int size() {
+        return docCount + (pendingCount > 0 ? 1 : 0);
+    }
+
+    /**
+     * Number of bytes used by the encoded postings.
+     */
+    public int byteSize() {
+        return length;
+    }
+
+    /**
+     * Decodes the postings into a new PostingsList.
+     */
+    public PostingsList decode() {
+        PostingsList list = PostingsCodec.decode(new VByte.Reader(data, 0), docCount, positionCount);
+        for (int j = 0; j < pendingCount; j++) {
+            list.addElements(pendingDocID, pending[j], 0.0);
+        }
+        return list;
+    }
+}
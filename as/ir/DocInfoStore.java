@@ -0,0 +1,255 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The names and lengths of a consecutive range of documents, in a binary
+ * file that is read through a memory mapping.
+ * <p>
+ * The file holds a header, the lengths as a fixed-width array of ints
+ * (-1 for docIDs without a document), an offset table and a blob of
+ * front-coded names. The names are in blocks of <code>BLOCK</code>
+ * documents: the first name of a block is stored whole, every other name as
+ * the number of bytes it shares with the previous name and the remaining
+ * bytes. Since documents are numbered in the order their directories are
+ * walked, neighbouring names share most of their path. The offset table
+ * gives the start of every block in the blob, so a name is decoded from at
+ * most <code>BLOCK</code> entries, and only when it is asked for.
+ */
+public class DocInfoStore {
+
+    /**
+     * The names and lengths of documents by docID; null for docIDs without
+     * a document.
+     */
+    public interface Source {
+        String name(int docID);
+
+        Integer length(int docID);
+    }
+
+    /**
+     * "IRDI" in ASCII.
+     */
+    public static final int MAGIC = 0x49524449;
+
+    public static final int VERSION = 1;
+
+    /**
+     * Number of names per front-coded block.
+     */
+    private static final int BLOCK = 16;
+
+    private static final int HEADER_SIZE = 20;
+
+    private final MappedFile map;
+    private final long base;
+    private final int firstDocID;
+    private final int count;
+    private final int present;
+    private final long offsetsStart;
+    private final long blobStart;
+
+    /**
+     * Maps the file written by <code>write</code>.
+     */
+    public DocInfoStore(File file) throws IOException {
+        this(map(file), 0);
+    }
+
+    private static MappedFile map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return new MappedFile(raf.getChannel(), raf.length());
+        }
+    }
+
+    /**
+     * Reads the document info written by <code>write</code> at position
+     * <code>base</code> of a mapped file.
+     */
+    public DocInfoStore(MappedFile map, long base) throws IOException {
+        this.map = map;
+        this.base = base;
+        if (map.size() < base + HEADER_SIZE || map.getInt(base) != MAGIC || map.getInt(base + 4) != VERSION) {
+            throw new IOException("The document info has the wrong format; the index has to be rebuilt.");
+        }
+        firstDocID = map.getInt(base + 8);
+        count = map.getInt(base + 12);
+        present = map.getInt(base + 16);
+        offsetsStart = base + HEADER_SIZE + 4L * count;
+        blobStart = offsetsStart + 4L * ((count + BLOCK - 1) / BLOCK + 1);
+    }
+
+    /**
+     * Number of bytes of the document info in the file.
+     */
+    public long byteSize() {
+        return blobStart + map.getInt(blobStart - 4) - base;
+    }
+
+    /**
+     * The first docID of the range.
+     */
+    public int firstDocID() {
+        return firstDocID;
+    }
+
+    /**
+     * The docID after the range.
+     */
+    public int endDocID() {
+        return firstDocID + count;
+    }
+
+    /**
+     * Number of documents in the range.
+     */
+    public int size() {
+        return present;
+    }
+
+    public boolean contains(int docID) {
+        return docID >= firstDocID && docID < firstDocID + count && map.getInt(base + HEADER_SIZE + 4L * (docID - firstDocID)) >= 0;
+    }
+
+    /**
+     * The length of a document, or null if there is no such document.
+     */
+    public Integer length(int docID) {
+        if (docID < firstDocID || docID >= firstDocID + count) {
+            return null;
+        }
+        int length = map.getInt(base + HEADER_SIZE + 4L * (docID - firstDocID));
+        return length < 0 ? null : length;
+    }
+
+    /**
+     * The name of a document, or null if there is no such document.
+     */
+    public String name(int docID) {
+        if (!contains(docID)) {
+            return null;
+        }
+        int i = docID - firstDocID;
+        int block = i / BLOCK;
+        long start = map.getInt(offsetsStart + 4L * block);
+        long end = map.getInt(offsetsStart + 4L * (block + 1));
+        byte[] bytes = new byte[(int) (end - start)];
+        map.get(blobStart + start, bytes, 0, bytes.length);
+
+        VByte.Reader reader = new VByte.Reader(bytes, 0);
+        byte[] name = new byte[64];
+        int nameLength = 0;
+        for (int j = block * BLOCK; j <= i; j++) {
+            int prefix = j == block * BLOCK ? 0 : reader.readInt();
+            int suffix = reader.readInt();
+            name = VByte.ensureCapacity(name, prefix, suffix);
+            System.arraycopy(bytes, reader.position(), name, prefix, suffix);
+            reader = new VByte.Reader(bytes, reader.position() + suffix);
+            nameLength = prefix + suffix;
+        }
+        return new String(name, 0, nameLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the names and lengths in Index.docNames and Index.docLengths of
+     * the documents from <code>firstDocID</code> up to (but not including)
+     * <code>endDocID</code>.
+     */
+    public static void write(DataOutput out, int firstDocID, int endDocID) throws IOException {
+        write(out, firstDocID, Math.min(endDocID, Index.docNames.endDocID()), new Source() {
+            public String name(int docID) {
+                return Index.docNames.get(docID);
+            }
+
+            public Integer length(int docID) {
+                return Index.docLengths.get(docID);
+            }
+        });
+    }
+
+    /**
+     * Writes the names and lengths that <code>source</code> has for the
+     * documents from <code>firstDocID</code> up to (but not including)
+     * <code>endDocID</code>. The source is read three times, so that only
+     * the offset table is kept in memory.
+     */
+    public static void write(DataOutput out, int firstDocID, int endDocID, Source source) throws IOException {
+        int first = -1, last = -1, n = 0;
+        for (int docID = firstDocID; docID < endDocID; docID++) {
+            if (source.length(docID) != null) {
+                if (first < 0) {
+                    first = docID;
+                }
+                last = docID;
+                n++;
+            }
+        }
+        firstDocID = Math.max(first, 0);
+        int count = n == 0 ? 0 : last - first + 1;
+        int blocks = (count + BLOCK - 1) / BLOCK;
+        int[] offsets = new int[blocks + 1];
+        offsets[blocks] = blob(source, firstDocID, count, offsets, null);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(firstDocID);
+        out.writeInt(count);
+        out.writeInt(n);
+        for (int i = 0; i < count; i++) {
+            Integer length = source.length(firstDocID + i);
+            out.writeInt(length == null ? -1 : length);
+        }
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        blob(source, firstDocID, count, offsets, out);
+    }
+
+    /**
+     * Front-codes the names of <code>count</code> docIDs from
+     * <code>firstDocID</code> on, and writes them to <code>out</code>
+     * unless it is null. Fills in the start of every block.
+     *
+     * @return The number of bytes of the names.
+     */
+    private static int blob(Source source, int firstDocID, int count, int[] offsets, DataOutput out) throws IOException {
+        byte[] entry = new byte[64];
+        byte[] previous = new byte[0];
+        int blobLength = 0;
+        for (int i = 0; i < count; i++) {
+            if (i % BLOCK == 0) {
+                offsets[i / BLOCK] = blobLength;
+            }
+            String s = source.length(firstDocID + i) == null ? null : source.name(firstDocID + i);
+            byte[] name = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+            int prefix = 0;
+            if (i % BLOCK != 0) {
+                int max = Math.min(previous.length, name.length);
+                while (prefix < max && previous[prefix] == name[prefix]) {
+                    prefix++;
+                }
+            }
+            entry = VByte.ensureCapacity(entry, 0, 2 * VByte.MAX_BYTES + name.length - prefix);
+            int length = 0;
+            if (i % BLOCK != 0) {
+                length = VByte.write(entry, length, prefix);
+            }
+            length = VByte.write(entry, length, name.length - prefix);
+            System.arraycopy(name, prefix, entry, length, name.length - prefix);
+            length += name.length - prefix;
+            if (out != null) {
+                out.write(entry, 0, length);
+            }
+            blobLength += length;
+            previous = name;
+        }
+        return blobLength;
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * Iterates over the docIDs matched by a query, in increasing order,
+ * without materializing them. A query is evaluated by a tree of these: the
+ * leaves are the postings of terms, the inner nodes combine their children
+ * as a disjunction (a wildcard expanded to its terms), a conjunction or a
+ * phrase. Each node only keeps a cursor into each child, so the memory of a
+ * query grows with the size of its tree, not with the number of matches.
+ * <p>
+ * An iterator starts before its first document; <code>next</code> and
+ * <code>advance</code> move it forward and return the docID it is on, or
+ * <code>NO_MORE_DOCS</code> when it is exhausted.
+ */
+public abstract class DocIterator {
+
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     * The current docID; -1 before the first call to next or advance.
+     */
+    public abstract int docID();
+
+    /**
+     * Moves to the next document.
+     */
+    public abstract int next();
+
+    /**
+     * Moves to the first document at or after <code>target</code>, which
+     * must be larger than the current docID.
+     */
+    public abstract int advance(int target);
+
+    /**
+     * An upper bound on the number of documents left to iterate over, used
+     * to order the children of a conjunction.
+     */
+    public abstract long cost();
+
+    /**
+     * Number of positions of the match in the current document; 0 for
+     * iterators that do not keep track of positions.
+     */
+    public int positionCount() {
+        return 0;
+    }
+
+    /**
+     * The jth position of the match in the current document, in increasing
+     * order. For a phrase, the position of its last term.
+     */
+    public int position(int j) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Returns <code>buf</code>, or a larger copy of its first
+     * <code>length</code> ints if it cannot hold <code>extra</code> more.
+     */
+    static int[] ensureCapacity(int[] buf, int length, int extra) {
+        if (length + extra <= buf.length) {
+            return buf;
+        }
+        return Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+    }
+
+    /**
+     * Passes the remaining documents to <code>collector</code>.
+     */
+    public void collect(IntConsumer collector) {
+        for (int docID = next(); docID != NO_MORE_DOCS; docID = next()) {
+            collector.accept(docID);
+        }
+    }
+
+
+    /**
+     * The documents of a postings list.
+     */
+    public static class Term extends DocIterator {
+        private final PostingsList postings;
+        private final int[] docIDs;
+        private final int size;
+        private int i = -1;
+
+        public Term(PostingsList postings) {
+            this.postings = postings;
+            this.docIDs = postings.docIDArray();
+            this.size = postings.size();
+        }
+
+        public int docID() {
+            return i < 0 ? -1 : i < size ? docIDs[i] : NO_MORE_DOCS;
+        }
+
+        public int next() {
+            i++;
+            return docID();
+        }
+
+        public int advance(int target) {
+            i = PostingsList.advance(docIDs, size, Math.max(i, 0), target);
+            return docID();
+        }
+
+        public long cost() {
+            return size;
+        }
+
+        public int positionCount() {
+            return postings.getTf(i);
+        }
+
+        public int position(int j) {
+            return postings.getPosition(i, j);
+        }
+    }
+
+
+    /**
+     * The documents of a record of the persistent data file (see
+     * PostingsCodec), read from the mapping of the file and decoded a block
+     * at a time. Advancing looks the target up in the skip table first, so
+     * the blocks in between are neither read nor decoded: intersecting a
+     * rare term with a common one decodes about one block of the common
+     * term per document of the rare one.
+     */
+    public static class Record extends DocIterator {
+        private final MappedFile data;
+        private final int docCount;
+        private final int blocks;
+
+        /**
+         * The last docID of every block, and where every block starts in
+         * the data file (and where the last one ends).
+         */
+        private final int[] lastDocIDs;
+        private final long[] starts;
+
+        /**
+         * The decoded block, and the index of the current document in it.
+         */
+        private int block = -1;
+        private int blockSize = 0;
+        private int i = -1;
+        private byte[] bytes = new byte[0];
+        private final int[] docIDs = new int[PostingsCodec.BLOCK];
+        private final int[] posStart = new int[PostingsCodec.BLOCK + 1];
+        private int[] positions = new int[PostingsCodec.BLOCK];
+
+        /**
+         * Reads the header and skip table of the record at <code>ptr</code>.
+         */
+        public Record(MappedFile data, long ptr) {
+            this.data = data;
+            long[] pos = { ptr };
+            docCount = readInt(data, pos);
+            readInt(data, pos);
+            blocks = readInt(data, pos);
+            lastDocIDs = new int[blocks];
+            int[] lengths = new int[blocks];
+            int docID = 0;
+            for (int b = 0; b < blocks; b++) {
+                docID += readInt(data, pos);
+                lastDocIDs[b] = docID;
+                lengths[b] = readInt(data, pos);
+            }
+            starts = new long[blocks + 1];
+            starts[0] = pos[0];
+            for (int b = 0; b < blocks; b++) {
+                starts[b + 1] = starts[b] + lengths[b];
+            }
+        }
+
+        /**
+         * Reads a variable-byte encoded int at <code>pos[0]</code>, and
+         * moves <code>pos[0]</code> past it.
+         */
+        private static int readInt(MappedFile data, long[] pos) {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = data.get(pos[0]++);
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        public int docID() {
+            return block < 0 ? -1 : i < blockSize ? docIDs[i] : NO_MORE_DOCS;
+        }
+
+        public int next() {
+            if (block >= 0 && i + 1 < blockSize) {
+                i++;
+            } else if (block + 1 < blocks) {
+                decode(block + 1);
+                i = 0;
+            } else {
+                block = Math.max(block, 0);
+                i = blockSize;
+            }
+            return docID();
+        }
+
+        public int advance(int target) {
+            if (block < 0 || target > lastDocIDs[block]) {
+                int b = PostingsList.advance(lastDocIDs, blocks, block + 1, target);
+                if (b == blocks) {
+                    block = Math.max(block, 0);
+                    i = blockSize;
+                    return NO_MORE_DOCS;
+                }
+                decode(b);
+                i = 0;
+            }
+            i = PostingsList.advance(docIDs, blockSize, i, target);
+            return docID();
+        }
+
+        /**
+         * Decodes block <code>b</code>.
+         */
+        private void decode(int b) {
+            int length = (int) (starts[b + 1] - starts[b]);
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            }
+            data.get(starts[b], bytes, 0, length);
+            VByte.Reader in = new VByte.Reader(bytes, 0);
+            int docID = b == 0 ? 0 : lastDocIDs[b - 1];
+            blockSize = Math.min(PostingsCodec.BLOCK, docCount - b * PostingsCodec.BLOCK);
+            int k = 0;
+            for (int d = 0; d < blockSize; d++) {
+                docID += in.readInt();
+                docIDs[d] = docID;
+                int tf = in.readInt();
+                positions = ensureCapacity(positions, k, tf);
+                int position = 0;
+                for (int j = 0; j < tf; j++) {
+                    position += in.readInt();
+                    positions[k++] = position;
+                }
+                posStart[d + 1] = k;
+            }
+            block = b;
+        }
+
+        public long cost() {
+            return docCount;
+        }
+
+        public int positionCount() {
+            return posStart[i + 1] - posStart[i];
+        }
+
+        public int position(int j) {
+            return positions[posStart[i] + j];
+        }
+    }
+
+
+    /**
+     * The documents of children over consecutive ranges of docIDs, such as
+     * the postings of a term in the segments of a SegmentedIndex, leaving
+     * out the deleted documents.
+     */
+    public static class Concatenation extends DocIterator {
+        private final DocIterator[] parts;
+        private final BitSet deleted;
+        private int part = 0;
+        private int docID = -1;
+
+        /**
+         * The children must be in docID order, and every document of a
+         * child must come before the documents of the next one.
+         */
+        public Concatenation(DocIterator[] parts, BitSet deleted) {
+            this.parts = parts;
+            this.deleted = deleted;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int next() {
+            return part == parts.length ? NO_MORE_DOCS : skip(parts[part].next(), docID + 1);
+        }
+
+        public int advance(int target) {
+            return part == parts.length ? NO_MORE_DOCS : skip(parts[part].advance(target), target);
+        }
+
+        /**
+         * Moves on from <code>d</code>, where the current child is, to the
+         * first document at or after <code>target</code> that is not
+         * deleted, going on to the next children when a child is exhausted.
+         */
+        private int skip(int d, int target) {
+            while (true) {
+                if (d == NO_MORE_DOCS) {
+                    if (++part == parts.length) {
+                        return docID = NO_MORE_DOCS;
+                    }
+                    d = parts[part].advance(target);
+                } else if (deleted.get(d)) {
+                    d = parts[part].next();
+                } else {
+                    return docID = d;
+                }
+            }
+        }
+
+        public long cost() {
+            long cost = 0;
+            for (int p = part; p < parts.length; p++) {
+                cost += parts[p].cost();
+            }
+            return cost;
+        }
+
+        public int positionCount() {
+            return parts[part].positionCount();
+        }
+
+        public int position(int j) {
+            return parts[part].position(j);
+        }
+    }
+
+
+    /**
+     * The documents matched by any of the children, such as the terms a
+     * wildcard expands to. The positions in a document are those of all
+     * children on it.
+     */
+    public static class Or extends DocIterator {
+        /**
+         * The children that are not on the current document, by docID.
+         */
+        private final PriorityQueue<DocIterator> queue =
+                new PriorityQueue<DocIterator>((a, b) -> Integer.compare(a.docID(), b.docID()));
+
+        /**
+         * The children on the current document.
+         */
+        private final DocIterator[] top;
+        private int topCount = 0;
+
+        private final long cost;
+        private int docID = -1;
+
+        private int[] positions = new int[16];
+        private int positionCount = -1;
+
+        public Or(DocIterator... children) {
+            top = children.clone();
+            topCount = children.length;
+            long c = 0;
+            for (DocIterator child : children) {
+                c += child.cost();
+            }
+            cost = c;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int next() {
+            for (int i = 0; i < topCount; i++) {
+                if (top[i].next() != NO_MORE_DOCS) {
+                    queue.add(top[i]);
+                }
+            }
+            return pullTop();
+        }
+
+        public int advance(int target) {
+            for (int i = 0; i < topCount; i++) {
+                if (top[i].advance(target) != NO_MORE_DOCS) {
+                    queue.add(top[i]);
+                }
+            }
+            while (!queue.isEmpty() && queue.peek().docID() < target) {
+                DocIterator child = queue.poll();
+                if (child.advance(target) != NO_MORE_DOCS) {
+                    queue.add(child);
+                }
+            }
+            return pullTop();
+        }
+
+        /**
+         * Takes the children on the smallest docID out of the queue.
+         */
+        private int pullTop() {
+            topCount = 0;
+            positionCount = -1;
+            if (queue.isEmpty()) {
+                return docID = NO_MORE_DOCS;
+            }
+            docID = queue.peek().docID();
+            while (!queue.isEmpty() && queue.peek().docID() == docID) {
+                top[topCount++] = queue.poll();
+            }
+            return docID;
+        }
+
+        public long cost() {
+            return cost;
+        }
+
+        public int positionCount() {
+            if (positionCount < 0) {
+                positionCount = 0;
+                for (int i = 0; i < topCount; i++) {
+                    int n = top[i].positionCount();
+                    positions = ensureCapacity(positions, positionCount, n);
+                    for (int j = 0; j < n; j++) {
+                        positions[positionCount++] = top[i].position(j);
+                    }
+                }
+                if (topCount > 1) {
+                    Arrays.sort(positions, 0, positionCount);
+                }
+            }
+            return positionCount;
+        }
+
+        public int position(int j) {
+            return positions[j];
+        }
+    }
+
+
+    /**
+     * The documents matched by all of the children. The children are
+     * advanced in the order given, so the one with the fewest documents
+     * should come first: every other child is only asked for the documents
+     * the first one is on.
+     */
+    public static class And extends DocIterator {
+        final DocIterator[] children;
+        private int docID = -1;
+
+        public And(DocIterator... children) {
+            this.children = children;
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int next() {
+            return align(children[0].next());
+        }
+
+        public int advance(int target) {
+            return align(children[0].advance(target));
+        }
+
+        /**
+         * Moves all children to the first document at or after
+         * <code>doc</code> (where the first child is) that they are all on.
+         */
+        private int align(int doc) {
+            outer:
+            while (doc != NO_MORE_DOCS) {
+                for (int i = 1; i < children.length; i++) {
+                    int d = children[i].docID();
+                    if (d < doc) {
+                        d = children[i].advance(doc);
+                    }
+                    if (d > doc) {
+                        doc = children[0].advance(d);
+                        continue outer;
+                    }
+                }
+                break;
+            }
+            return docID = doc;
+        }
+
+        public long cost() {
+            return children[0].cost();
+        }
+    }
+
+
+    /**
+     * The documents in which the children match at consecutive positions.
+     * The children are iterated over as a conjunction, in the order given,
+     * and the phrase is checked in each document they are all on.
+     */
+    public static class Phrase extends DocIterator {
+        private final DocIterator[] terms;
+        private final And all;
+
+        /**
+         * The positions where the phrase ends in the current document.
+         */
+        private int[] ends = new int[16];
+        private int[] next = new int[16];
+        private int endCount = 0;
+
+        /**
+         * @param terms The children in phrase order.
+         * @param order The same children in the order to intersect them.
+         */
+        public Phrase(DocIterator[] terms, DocIterator[] order) {
+            this.terms = terms;
+            this.all = new And(order);
+        }
+
+        public Phrase(DocIterator... terms) {
+            this(terms, terms);
+        }
+
+        public int docID() {
+            return all.docID();
+        }
+
+        public int next() {
+            int doc = all.next();
+            while (doc != NO_MORE_DOCS && !matches()) {
+                doc = all.next();
+            }
+            return doc;
+        }
+
+        public int advance(int target) {
+            int doc = all.advance(target);
+            while (doc != NO_MORE_DOCS && !matches()) {
+                doc = all.next();
+            }
+            return doc;
+        }
+
+        /**
+         * Merges the positions where the phrase so far ends with the
+         * positions of the next term, in one pass each, and gives up as
+         * soon as none are left.
+         */
+        private boolean matches() {
+            endCount = terms[0].positionCount();
+            ends = ensureCapacity(ends, 0, endCount);
+            for (int j = 0; j < endCount; j++) {
+                ends[j] = terms[0].position(j);
+            }
+            for (int t = 1; t < terms.length && endCount > 0; t++) {
+                DocIterator term = terms[t];
+                int n = term.positionCount();
+                next = ensureCapacity(next, 0, n);
+                int kept = 0;
+                int j = 0;
+                for (int k = 0; k < n && j < endCount; k++) {
+                    int position = term.position(k);
+                    while (j < endCount && ends[j] < position - 1) {
+                        j++;
+                    }
+                    if (j < endCount && ends[j] == position - 1) {
+                        next[kept++] = position;
+                    }
+                }
+                int[] swap = ends;
+                ends = next;
+                next = swap;
+                endCount = kept;
+            }
+            return endCount > 0;
+        }
+
+        public long cost() {
+            return all.cost();
+        }
+
+        public int positionCount() {
+            return endCount;
+        }
+
+        public int position(int j) {
+            return ends[j];
+        }
+    }
+
+
+    /**
+     * The documents of another iterator, read into a bit set at once, so
+     * that advancing to a document costs the same however far it is. Loses
+     * the positions.
+     */
+    public static class Bits extends DocIterator {
+        private final BitSet docs = new BitSet();
+        private final long cost;
+        private int docID = -1;
+
+        public Bits(DocIterator source) {
+            source.collect(docs::set);
+            cost = docs.cardinality();
+        }
+
+        public int docID() {
+            return docID;
+        }
+
+        public int next() {
+            return advance(docID + 1);
+        }
+
+        public int advance(int target) {
+            int doc = docs.nextSetBit(target);
+            return docID = doc < 0 ? NO_MORE_DOCS : doc;
+        }
+
+        public long cost() {
+            return cost;
+        }
+    }
+
+
+    /**
+     * An iterator without documents, for a term that is not in the index.
+     */
+    public static class Empty extends DocIterator {
+        private int docID = -1;
+
+        public int docID() {
+            return docID;
+        }
+
+        public int next() {
+            return docID = NO_MORE_DOCS;
+        }
+
+        public int advance(int target) {
+            return docID = NO_MORE_DOCS;
+        }
+
+        public long cost() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Remembers, for every indexed file, its docID, size, modification time
+ * and a CRC32C checksum of its contents, so that a later indexing run can
+ * skip the files that have not changed. Documents whose file was modified
+ * or deleted are marked as deleted ("tombstones"); their postings stay in
+ * the index until their segment is merged, but queries leave them out. The
+ * merge drops them and purges the tombstones.
+ * <p>
+ * Only a SegmentedIndex (option -seg) keeps a manifest. The other indexes,
+ * including the snapshot of a HashedIndex, are built from all files.
+ */
+public class DocumentManifest {
+
+    /**
+     * "IRDM" in ASCII.
+     */
+    public static final int MAGIC = 0x4952444D;
+
+    public static final int VERSION = 1;
+
+    /**
+     * What the manifest knows about a file.
+     */
+    static class FileInfo {
+        final int docID;
+        long size;
+        long modified;
+        final long checksum;
+        /** Whether the file was seen by the current indexing run. */
+        boolean seen = false;
+
+        FileInfo(int docID, long size, long modified, long checksum) {
+            this.docID = docID;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+
+    private final File file;
+
+    /**
+     * The live (not deleted) documents by path.
+     */
+    private final HashMap<String, FileInfo> files = new HashMap<String, FileInfo>();
+
+    /**
+     * The docIDs of deleted documents.
+     */
+    private final BitSet deleted = new BitSet();
+
+    /**
+     * Whether the manifest has changed since it was read.
+     */
+    private boolean changed = false;
+
+    /**
+     * Reads the manifest stored in <code>file</code>, if it exists.
+     */
+    public DocumentManifest(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Manifest " + file + " has the wrong format; all files will be indexed.");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                files.put(path, new FileInfo(in.readInt(), in.readLong(), in.readLong(), in.readLong()));
+            }
+            int deletedCount = in.readInt();
+            for (int i = 0; i < deletedCount; i++) {
+                deleted.set(in.readInt());
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            files.clear();
+            deleted.clear();
+        }
+    }
+
+    /**
+     * Returns true if the file has to be indexed because it is new or was
+     * modified. A modified file's old document is marked as deleted.
+     */
+    public synchronized boolean needsIndexing(File f) {
+        FileInfo info = files.get(f.getPath());
+        if (info == null) {
+            return true;
+        }
+        info.seen = true;
+        long size = f.length(), modified = f.lastModified();
+        if (size == info.size && modified == info.modified) {
+            return false;
+        }
+        // The time stamp changed; check whether the contents did
+        try {
+            if (size == info.size && checksum(f) == info.checksum) {
+                info.modified = modified;
+                changed = true;
+                return false;
+            }
+        } catch (IOException e) {
+            // index it again
+        }
+        delete(f.getPath(), info);
+        return true;
+    }
+
+    /**
+     * Records that a file was indexed as document <code>docID</code>.
+     */
+    public synchronized void add(File f, int docID, long checksum) {
+        FileInfo info = new FileInfo(docID, f.length(), f.lastModified(), checksum);
+        info.seen = true;
+        files.put(f.getPath(), info);
+        changed = true;
+    }
+
+    /**
+     * Marks the documents of all files under the given directories that
+     * were not seen by this indexing run as deleted.
+     *
+     * @return The number of deleted documents.
+     */
+    public synchronized int deleteUnseen(ArrayList<String> dirNames) {
+        ArrayList<String> gone = new ArrayList<String>();
+        // compare whole path components, so that davisWiki does not cover davisWiki2
+        ArrayList<Path> dirs = new ArrayList<Path>();
+        for (String dirName : dirNames) {
+            dirs.add(Paths.get(dirName).normalize());
+        }
+        for (HashMap.Entry<String, FileInfo> entry : files.entrySet()) {
+            if (!entry.getValue().seen) {
+                Path path = Paths.get(entry.getKey()).normalize();
+                for (Path dir : dirs) {
+                    if (path.startsWith(dir)) {
+                        gone.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+        for (String path : gone) {
+            delete(path, files.get(path));
+        }
+        return gone.size();
+    }
+
+    /**
+     * Marks the documents in Index.docNames that no file of the manifest
+     * refers to as deleted. They were indexed by a run that published its
+     * segment but stopped before it saved the manifest; their files are not
+     * in the manifest, so the next run indexes them again.
+     *
+     * @return The number of deleted documents.
+     */
+    public synchronized int deleteUnknown() {
+        BitSet known = (BitSet) deleted.clone();
+        for (FileInfo info : files.values()) {
+            known.set(info.docID);
+        }
+        int count = 0;
+        for (int docID : Index.docNames.keySet()) {
+            if (!known.get(docID)) {
+                deleted.set(docID);
+                count++;
+            }
+        }
+        if (count > 0) {
+            changed = true;
+        }
+        return count;
+    }
+
+    private void delete(String path, FileInfo info) {
+        files.remove(path);
+        deleted.set(info.docID);
+        changed = true;
+    }
+
+    /**
+     * Removes the deleted documents from Index.docNames, Index.docLengths
+     * and Index.forwardIndex. Must not run while documents are being
+     * indexed.
+     */
+    public synchronized void forgetDeleted() {
+        for (int docID = deleted.nextSetBit(0); docID >= 0; docID = deleted.nextSetBit(docID + 1)) {
+            Index.docNames.remove(docID);
+            Index.docLengths.remove(docID);
+            Index.forwardIndex.removeDocument(docID);
+        }
+    }
+
+    /**
+     * Forgets the deletion of the given documents, once no segment holds
+     * their postings any more. Saved with the next <code>save</code>.
+     */
+    public synchronized void purge(BitSet docIDs) {
+        deleted.andNot(docIDs);
+        changed = true;
+    }
+
+    public synchronized boolean isDeleted(int docID) {
+        return deleted.get(docID);
+    }
+
+    /**
+     * A copy of the set of deleted docIDs.
+     */
+    public synchronized BitSet deletedDocs() {
+        return (BitSet) deleted.clone();
+    }
+
+    /**
+     * Writes the manifest back to its file if it has changed.
+     *
+     * @return Whether the manifest was written.
+     */
+    public synchronized boolean save() {
+        if (!changed) {
+            return false;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (HashMap.Entry<String, FileInfo> entry : files.entrySet()) {
+                FileInfo info = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(info.docID);
+                out.writeLong(info.size);
+                out.writeLong(info.modified);
+                out.writeLong(info.checksum);
+            }
+            out.writeInt(deleted.cardinality());
+            for (int docID = deleted.nextSetBit(0); docID >= 0; docID = deleted.nextSetBit(docID + 1)) {
+                out.writeInt(docID);
+            }
+            out.flush();
+            fout.getChannel().force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (temp.renameTo(file)) {
+            changed = false;
+            return true;
+        }
+        System.err.println("Could not replace " + file);
+        return false;
+    }
+
+    /**
+     * The CRC32C checksum of a file's contents.
+     */
+    public static long checksum(File f) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (InputStream in = new FileInputStream(f)) {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * A map from docIDs to some information about the documents (the name or
+ * the length), which is read from DocInfoStores when it is asked for.
+ * Documents added since the stores were written are kept in a hash map.
+ * <p>
+ * So an index read from disk needs no time to load the information about
+ * its documents, and the names of only the documents that are displayed are
+ * ever decoded.
+ */
+public class DocumentMap<V> extends AbstractMap<Integer, V> {
+
+    /**
+     * Reads the information of a document from a store.
+     */
+    private final BiFunction<DocInfoStore, Integer, V> reader;
+
+    /**
+     * The stores, sorted by docID range. Replaced, not modified, when a
+     * store is attached.
+     */
+    private volatile DocInfoStore[] stores = new DocInfoStore[0];
+
+    /**
+     * Documents that are not in a store, or whose entry in a store was
+     * replaced.
+     */
+    private final ConcurrentHashMap<Integer, V> added = new ConcurrentHashMap<Integer, V>();
+
+    /**
+     * Documents that were removed (or replaced) but are still in a store.
+     * Replaced, not modified.
+     */
+    private volatile BitSet removed = new BitSet();
+
+    public DocumentMap(BiFunction<DocInfoStore, Integer, V> reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the documents in the range of <code>store</code> from it from
+     * now on. The store replaces the stores whose range lies within its
+     * range, and the documents added in the range. Documents that were
+     * removed stay removed, even if the store has them.
+     * <p>
+     * Readers do not lock the map: the new stores are published before the
+     * added documents are dropped, so <code>get</code> finds every document
+     * in one of them meanwhile.
+     */
+    public synchronized void attach(DocInfoStore store) {
+        ArrayList<DocInfoStore> kept = new ArrayList<DocInfoStore>();
+        for (DocInfoStore s : stores) {
+            if (s.firstDocID() < store.firstDocID() || s.endDocID() > store.endDocID()) {
+                kept.add(s);
+            }
+        }
+        kept.add(store);
+        kept.sort(Comparator.comparingInt(DocInfoStore::firstDocID));
+        BitSet r = (BitSet) removed.clone();
+        r.clear(store.firstDocID(), store.endDocID());
+        BitSet old = removed;
+        for (int docID = old.nextSetBit(store.firstDocID()); docID >= 0 && docID < store.endDocID(); docID = old.nextSetBit(docID + 1)) {
+            if (!added.containsKey(docID) && store.contains(docID)) {
+                r.set(docID);
+            }
+        }
+        removed = r;
+        stores = kept.toArray(new DocInfoStore[kept.size()]);
+        added.keySet().removeIf(docID -> docID >= store.firstDocID() && docID < store.endDocID());
+    }
+
+    private DocInfoStore store(int docID) {
+        return store(stores, docID);
+    }
+
+    private static DocInfoStore store(DocInfoStore[] s, int docID) {
+        int low = 0, high = s.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (docID < s[mid].firstDocID()) {
+                high = mid - 1;
+            } else if (docID >= s[mid].endDocID()) {
+                low = mid + 1;
+            } else {
+                return s[mid].contains(docID) ? s[mid] : null;
+            }
+        }
+        return null;
+    }
+
+    private boolean inStore(int docID) {
+        return store(docID) != null && !removed.get(docID);
+    }
+
+    public V get(Object key) {
+        if (!(key instanceof Integer)) {
+            return null;
+        }
+        int docID = (Integer) key;
+        V value = added.get(docID);
+        if (value != null) {
+            return value;
+        }
+        DocInfoStore store = store(docID);
+        return store == null || removed.get(docID) ? null : reader.apply(store, docID);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public synchronized V put(Integer docID, V value) {
+        V old = get(docID);
+        if (inStore(docID)) {
+            BitSet r = (BitSet) removed.clone();
+            r.set(docID);
+            removed = r;
+        }
+        added.put(docID, value);
+        return old;
+    }
+
+    public synchronized V remove(Object key) {
+        V old = get(key);
+        if (old != null) {
+            int docID = (Integer) key;
+            added.remove(docID);
+            if (inStore(docID)) {
+                BitSet r = (BitSet) removed.clone();
+                r.set(docID);
+                removed = r;
+            }
+        }
+        return old;
+    }
+
+    public int size() {
+        int size = added.size() - removed.cardinality();
+        for (DocInfoStore store : stores) {
+            size += store.size();
+        }
+        return size;
+    }
+
+    /**
+     * One more than the largest docID in the stores or added since.
+     */
+    public int endDocID() {
+        int end = 0;
+        for (DocInfoStore store : stores) {
+            end = Math.max(end, store.endDocID());
+        }
+        for (int docID : added.keySet()) {
+            end = Math.max(end, docID + 1);
+        }
+        return end;
+    }
+
+    public synchronized void clear() {
+        stores = new DocInfoStore[0];
+        added.clear();
+        removed = new BitSet();
+    }
+
+    /**
+     * The documents in the stores, then the added ones, as they were when
+     * the iterator was made. The values are only read when asked for.
+     */
+    public Set<Map.Entry<Integer, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, V>>() {
+            public int size() {
+                return DocumentMap.this.size();
+            }
+
+            public Iterator<Map.Entry<Integer, V>> iterator() {
+                DocInfoStore[] s;
+                BitSet r;
+                Iterator<Integer> fromAdded;
+                synchronized (DocumentMap.this) {
+                    s = stores;
+                    r = removed;
+                    fromAdded = new ArrayList<Integer>(added.keySet()).iterator();
+                }
+                return new Iterator<Map.Entry<Integer, V>>() {
+                    int store = 0;
+                    /** The next docID to look at in the current store. */
+                    int docID = s.length == 0 ? 0 : s[0].firstDocID();
+                    Integer next = advance();
+
+                    private Integer advance() {
+                        while (store < s.length) {
+                            docID = Math.max(docID, s[store].firstDocID());
+                            while (docID < s[store].endDocID() && (!s[store].contains(docID) || r.get(docID))) {
+                                docID++;
+                            }
+                            if (docID < s[store].endDocID()) {
+                                return docID++;
+                            }
+                            store++;
+                        }
+                        return fromAdded.hasNext() ? fromAdded.next() : null;
+                    }
+
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    public Map.Entry<Integer, V> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<Integer, V> entry = new LazyEntry(next);
+                        next = advance();
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+
+    private class LazyEntry implements Map.Entry<Integer, V> {
+        private final Integer docID;
+
+        LazyEntry(Integer docID) {
+            this.docID = docID;
+        }
+
+        public Integer getKey() {
+            return docID;
+        }
+
+        public V getValue() {
+            return get(docID);
+        }
+
+        public V setValue(V value) {
+            return put(docID, value);
+        }
+    }
+}
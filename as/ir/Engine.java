@@ -8,7 +8,10 @@
 package ir;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This is the main class for the search engine.
@@ -52,9 +55,10 @@ public class Engine {
     ArrayList<String> dirNames = new ArrayList<String>();
 
     /**
-     * Lock to prevent simultaneous access to the index.
+     * Lock to prevent searching while the index is written. Searches take
+     * the read lock, so any number of them can run at the same time.
      */
-    Object indexLock = new Object();
+    ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /**
      * The patterns matching non-standard words (e-mail addresses, etc.)
@@ -76,6 +80,30 @@ public class Engine {
      */
     boolean is_indexing = true;
 
+    /**
+     * Number of threads used for indexing.
+     */
+    int indexingThreads = 1;
+
+    /**
+     * Index with an IndexingPipeline (read, tokenize and invert files at the
+     * same time).
+     */
+    boolean pipelined = false;
+
+    /**
+     * Memory budget in bytes for the postings of a PersistentHashedIndex
+     * during indexing (0 means the default).
+     */
+    long memoryBudget = 0L;
+
+    /**
+     * Use a SegmentedIndex: every indexing run adds a segment to the index
+     * on disk, and indexes only the new and modified files. Without it
+     * every run indexes all files again.
+     */
+    boolean segmented = false;
+
 
     /**
      * Constructor.
@@ -83,36 +111,134 @@ public class Engine {
      */
     public Engine(String[] args) {
         decodeArgs(args);
+        if (segmented) {
+            index = new SegmentedIndex(indexLock);
+        }
+        if (memoryBudget > 0 && index instanceof PersistentHashedIndex) {
+            ((PersistentHashedIndex) index).memoryBudget = memoryBudget;
+        }
+        if (index instanceof PersistentHashedIndex || index instanceof SegmentedIndex) {
+            openKGrams();
+        }
         indexer = new Indexer(index, kgIndex, patterns_file);
+        if (index instanceof SegmentedIndex) {
+            indexer.setNextDocID(((SegmentedIndex) index).nextDocID());
+        }
         searcher = new Searcher(index, kgIndex);
         speller = new SpellChecker(index, kgIndex, searcher);
         gui = new SearchGUI(this);
         gui.init();
         /*
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to
+         *   Indexing holds the write lock since we don't want to
          *   search at the same time we're indexing new files (this might
          *   corrupt the index).
          */
         if (is_indexing) {
-            synchronized (indexLock) {
+            indexLock.writeLock().lock();
+            try {
                 gui.displayInfoText("Indexing, please wait...");
                 long startTime = System.currentTimeMillis();
-                for (int i = 0; i < dirNames.size(); i++) {
-                    File dokDir = new File(dirNames.get(i));
-                    indexer.processFiles(dokDir, is_indexing);
+                if (pipelined) {
+                    indexer.processFilesPipelined(dirNames, indexingThreads);
+                } else if (indexingThreads > 1) {
+                    indexer.processFilesInParallel(dirNames, indexingThreads);
+                } else {
+                    for (int i = 0; i < dirNames.size(); i++) {
+                        File dokDir = new File(dirNames.get(i));
+                        indexer.processFiles(dokDir, is_indexing);
+                    }
                 }
+                indexer.removeDeletedFiles(dirNames);
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 gui.displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
+                if (index instanceof SegmentedIndex) {
+                    ((SegmentedIndex) index).setEndDocID(indexer.nextDocID());
+                }
                 index.cleanup();
+                if (index instanceof PersistentHashedIndex || index instanceof SegmentedIndex) {
+                    saveKGrams();
+                }
+            } finally {
+                indexLock.writeLock().unlock();
             }
         } else {
+            if (index instanceof HashedIndex) {
+                restoreSnapshot();
+            }
             gui.displayInfoText("Index is loaded from disk");
         }
         indexer.linkToDoc();
     }
 
 
+    /**
+     * Looks the k-grams of a persistent index up in its k-gram file.
+     */
+    private void openKGrams() {
+        File file = new File(PersistentHashedIndex.INDEXDIR + "/" + PersistentHashedIndex.KGRAMS_FNAME);
+        if (file.exists()) {
+            try {
+                kgIndex.open(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the k-gram index of a persistent index to disk, and frees the
+     * k-grams in memory.
+     */
+    private void saveKGrams() {
+        try {
+            kgIndex.save(new File(PersistentHashedIndex.INDEXDIR + "/" + PersistentHashedIndex.KGRAMS_FNAME));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Writes a snapshot of the in-memory index, which the next run started
+     * with -ni reads instead of indexing the collection.
+     */
+    void saveSnapshot() {
+        if (!(index instanceof HashedIndex)) {
+            System.err.println("The index is already on disk.");
+            return;
+        }
+        // Writing the snapshot only reads the index, so searches may go on
+        indexLock.readLock().lock();
+        try {
+            long startTime = System.currentTimeMillis();
+            IndexSnapshot.write(IndexSnapshot.file(), (HashedIndex) index, kgIndex);
+            System.err.println(String.format("Saved the index in %.1f seconds.",
+                    (System.currentTimeMillis() - startTime) / 1000.0));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private void restoreSnapshot() {
+        indexLock.writeLock().lock();
+        try {
+            long startTime = System.currentTimeMillis();
+            IndexSnapshot.read(IndexSnapshot.file(), (HashedIndex) index, kgIndex);
+            System.err.println(String.format("Read the index in %.1f seconds.",
+                    (System.currentTimeMillis() - startTime) / 1000.0));
+        } catch (FileNotFoundException e) {
+            System.err.println("There is no saved index in " + IndexSnapshot.file() + ".");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+
     /* ----------------------------------------------- */
 
     /**
@@ -141,6 +267,22 @@ public class Engine {
                 if (i < args.length) {
                     rank_file = args[i++];
                 }
+            } else if ("-t".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    indexingThreads = Math.max(1, Integer.parseInt(args[i++]));
+                }
+            } else if ("-pipeline".equals(args[i])) {
+                i++;
+                pipelined = true;
+            } else if ("-mb".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    memoryBudget = Long.parseLong(args[i++]) * 1000000L;
+                }
+            } else if ("-seg".equals(args[i])) {
+                i++;
+                segmented = true;
             } else if ("-ni".equals(args[i])) {
                 i++;
                 is_indexing = false;
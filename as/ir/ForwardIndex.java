@@ -0,0 +1,428 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Maps every document to the terms it contains and their term frequencies,
+ * and every term to its document frequency. Terms are identified by their
+ * ids in Index.dictionary.
+ * <p>
+ * The (termID, tf) pairs of all documents form one sequence. The pairs of
+ * one document are contiguous and sorted by termID, starting at position
+ * <code>docStart[docID]</code>, so the tf of a term in a document is found
+ * by binary search within that slice. The first pairs of the sequence may
+ * be in files, read through memory mappings (see <code>spill</code> and
+ * <code>read(File)</code>); the pairs added since are in two parallel int
+ * arrays.
+ * <p>
+ * A persistent index writes the forward index to a file when it is
+ * committed, so that ranked retrieval works when the index is read from
+ * disk. While it indexes, it spills the pairs in memory whenever it writes
+ * a run, so only the start and size of every document and the document
+ * frequencies stay in memory.
+ */
+public class ForwardIndex {
+
+    /**
+     * Pairs in a file, from position <code>first</code> of the sequence
+     * on, stored as two ints each from <code>base</code>.
+     */
+    private static class Part {
+        final MappedFile map;
+        final long base;
+        final long first;
+
+        Part(MappedFile map, long base, long first) {
+            this.map = map;
+            this.base = base;
+            this.first = first;
+        }
+    }
+
+    /**
+     * The files holding the first pairs, in order. Replaced, not modified.
+     */
+    private volatile Part[] parts = new Part[0];
+
+    /**
+     * Number of pairs in the files; the pairs in memory come after them.
+     */
+    private long spilled = 0;
+
+    /**
+     * The (termID, tf) pairs in memory.
+     */
+    private int[] termIDs = new int[1024];
+    private int[] tfs = new int[1024];
+    private int used = 0;
+
+    /**
+     * Start of each document's slice, and the number of distinct terms in it.
+     */
+    private long[] docStart = new long[64];
+    private int[] docSize = new int[64];
+
+    /**
+     * Number of documents containing each term.
+     */
+    private int[] docFreq = new int[64];
+
+    /**
+     * Number of documents added.
+     */
+    private int numberOfDocs = 0;
+
+    /**
+     * One more than the largest docID added.
+     */
+    private int endDocID = 0;
+
+    /**
+     * The file the pairs are spilled to, and the position of its first pair
+     * in the sequence; null until the first spill.
+     */
+    private File spillFile;
+    private RandomAccessFile spillOut;
+    private long spillFirst;
+
+    /**
+     * "IRFI" in ASCII.
+     */
+    public static final int MAGIC = 0x49524649;
+
+    public static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 28;
+
+    /**
+     * Adds a document given the term ids of its tokens, in any order. May be
+     * called by several indexing threads.
+     */
+    public synchronized void addDocument(int docID, int[] tokens, int count) {
+        int[] sorted = Arrays.copyOf(tokens, count);
+        Arrays.sort(sorted);
+
+        if (docID >= docStart.length) {
+            int capacity = Math.max(docStart.length * 2, docID + 1);
+            docStart = Arrays.copyOf(docStart, capacity);
+            docSize = Arrays.copyOf(docSize, capacity);
+        }
+        // A document that is indexed again replaces the old one
+        removeDocument(docID);
+        endDocID = Math.max(endDocID, docID + 1);
+        docStart[docID] = spilled + used;
+        int distinct = 0;
+        for (int i = 0; i < count;) {
+            int termID = sorted[i];
+            int j = i + 1;
+            while (j < count && sorted[j] == termID) {
+                j++;
+            }
+            if (used == termIDs.length) {
+                termIDs = Arrays.copyOf(termIDs, used * 2);
+                tfs = Arrays.copyOf(tfs, used * 2);
+            }
+            termIDs[used] = termID;
+            tfs[used] = j - i;
+            used++;
+            distinct++;
+
+            if (termID >= docFreq.length) {
+                docFreq = Arrays.copyOf(docFreq, Math.max(docFreq.length * 2, termID + 1));
+            }
+            docFreq[termID]++;
+            i = j;
+        }
+        docSize[docID] = distinct;
+        numberOfDocs++;
+    }
+
+    /**
+     * Removes a document (if it was added) from the document frequencies.
+     * Its pairs are dropped by the next <code>write</code>.
+     */
+    public synchronized void removeDocument(int docID) {
+        if (docID < 0 || docID >= docStart.length || docSize[docID] == 0) {
+            return;
+        }
+        for (long k = docStart[docID]; k < docStart[docID] + docSize[docID]; k++) {
+            docFreq[termAt(k)]--;
+        }
+        docSize[docID] = 0;
+        numberOfDocs--;
+    }
+
+    /**
+     * Returns the number of occurrences of a term in a document.
+     */
+    public int tf(int docID, int termID) {
+        if (docID < 0 || docID >= docStart.length || termID < 0) {
+            return 0;
+        }
+        long low = docStart[docID];
+        long high = low + docSize[docID] - 1;
+        if (low >= spilled) {
+            int k = Arrays.binarySearch(termIDs, (int) (low - spilled), (int) (high + 1 - spilled), termID);
+            return k >= 0 ? tfs[k] : 0;
+        }
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int t = termAt(mid);
+            if (t < termID) {
+                low = mid + 1;
+            } else if (t > termID) {
+                high = mid - 1;
+            } else {
+                return tfAt(mid);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of documents containing a term.
+     */
+    public int docFreq(int termID) {
+        return termID >= 0 && termID < docFreq.length ? docFreq[termID] : 0;
+    }
+
+    /**
+     * The slice of a document is <code>start(docID)</code> up to (but not
+     * including) <code>end(docID)</code>; use <code>termAt</code> and
+     * <code>tfAt</code> to read its pairs.
+     */
+    public long start(int docID) {
+        return docID < docStart.length ? docStart[docID] : 0;
+    }
+
+    public long end(int docID) {
+        return docID < docStart.length ? docStart[docID] + docSize[docID] : 0;
+    }
+
+    public int termAt(long k) {
+        return k >= spilled ? termIDs[(int) (k - spilled)] : pairInt(k, 0);
+    }
+
+    public int tfAt(long k) {
+        return k >= spilled ? tfs[(int) (k - spilled)] : pairInt(k, 4);
+    }
+
+    /**
+     * Reads the termID (<code>field</code> 0) or tf (4) of a pair in a file.
+     */
+    private int pairInt(long k, int field) {
+        Part[] p = parts;
+        int i = p.length - 1;
+        while (p[i].first > k) {
+            i--;
+        }
+        return p[i].map.getInt(p[i].base + 8 * (k - p[i].first) + field);
+    }
+
+    /**
+     * Number of documents in the forward index.
+     */
+    public int numberOfDocs() {
+        return numberOfDocs;
+    }
+
+    /**
+     * Approximate number of bytes used by the pairs in memory.
+     */
+    public synchronized long memorySize() {
+        return 8L * used;
+    }
+
+    /**
+     * Appends the pairs in memory to <code>file</code>, which the first
+     * spill empties, and reads them from there from now on. The file is
+     * deleted when the forward index is written or read.
+     */
+    public synchronized void spill(File file) throws IOException {
+        if (used == 0) {
+            return;
+        }
+        if (spillOut == null) {
+            spillOut = new RandomAccessFile(file, "rw");
+            spillOut.setLength(0);
+            spillFile = file;
+            spillFirst = spilled;
+        }
+        FileChannel channel = spillOut.getChannel();
+        long pos = 8 * (spilled - spillFirst);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        for (int k = 0; k < used; k++) {
+            if (buffer.remaining() < 8) {
+                buffer.flip();
+                PersistentHashedIndex.writeFully(channel, buffer, pos);
+                pos += buffer.limit();
+                buffer.clear();
+            }
+            buffer.putInt(termIDs[k]).putInt(tfs[k]);
+        }
+        buffer.flip();
+        PersistentHashedIndex.writeFully(channel, buffer, pos);
+        pos += buffer.limit();
+
+        Part part = new Part(new MappedFile(channel, pos), 0, spillFirst);
+        Part[] p = parts;
+        if (p.length > 0 && p[p.length - 1].first == spillFirst) {
+            p = p.clone();
+            p[p.length - 1] = part;
+        } else {
+            p = Arrays.copyOf(p, p.length + 1);
+            p[p.length - 1] = part;
+        }
+        parts = p;
+        spilled += used;
+        used = 0;
+        termIDs = new int[1024];
+        tfs = new int[1024];
+    }
+
+    private void closeSpill() throws IOException {
+        if (spillOut != null) {
+            spillOut.close();
+            spillFile.delete();
+            spillOut = null;
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Writes the forward index and the document frequencies to a file,
+     * leaving out the pairs of removed documents, and reads the pairs from
+     * there from now on. The file is written under another name and then
+     * renamed, since the old file may still be mapped.
+     */
+    public synchronized void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16))) {
+            write(out);
+            out.flush();
+            fout.getChannel().force(false);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        read(file);
+    }
+
+    public synchronized void write(DataOutput out) throws IOException {
+        int terms = docFreq.length;
+        while (terms > 0 && docFreq[terms - 1] == 0) {
+            terms--;
+        }
+        long pairs = 0;
+        for (int docID = 0; docID < endDocID; docID++) {
+            pairs += docSize[docID];
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numberOfDocs);
+        out.writeInt(endDocID);
+        out.writeInt(terms);
+        out.writeLong(pairs);
+        for (int docID = 0; docID < endDocID; docID++) {
+            out.writeInt(docSize[docID]);
+        }
+        for (int termID = 0; termID < terms; termID++) {
+            out.writeInt(docFreq[termID]);
+        }
+        for (int docID = 0; docID < endDocID; docID++) {
+            for (long k = docStart[docID]; k < docStart[docID] + docSize[docID]; k++) {
+                out.writeInt(termAt(k));
+                out.writeInt(tfAt(k));
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the forward index with the contents of a
+     * file written by <code>write</code>. Only the document sizes and the
+     * document frequencies are read into memory; the pairs are read from
+     * a memory mapping of the file.
+     */
+    public synchronized void read(File file) throws IOException {
+        MappedFile map;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            map = new MappedFile(raf.getChannel(), raf.length());
+        }
+        if (map.size() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("The forward index has the wrong format; the index has to be rebuilt.");
+        }
+        numberOfDocs = map.getInt(8);
+        endDocID = map.getInt(12);
+        int terms = map.getInt(16);
+        long pairs = map.getLong(20);
+        long pos = HEADER_SIZE;
+        docStart = new long[Math.max(64, endDocID)];
+        docSize = new int[Math.max(64, endDocID)];
+        long start = 0;
+        for (int docID = 0; docID < endDocID; docID++, pos += 4) {
+            docSize[docID] = map.getInt(pos);
+            docStart[docID] = start;
+            start += docSize[docID];
+        }
+        docFreq = new int[Math.max(64, terms)];
+        for (int termID = 0; termID < terms; termID++, pos += 4) {
+            docFreq[termID] = map.getInt(pos);
+        }
+        closeSpill();
+        parts = pairs == 0 ? new Part[0] : new Part[] { new Part(map, pos, 0) };
+        spilled = pairs;
+        termIDs = new int[1024];
+        tfs = new int[1024];
+        used = 0;
+    }
+
+    /**
+     * Replaces the contents of the forward index with the contents written
+     * by <code>write</code> at the position of the buffer, and moves the
+     * position past them. Everything is copied into memory.
+     */
+    public synchronized void read(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("The forward index has the wrong format; the index has to be rebuilt.");
+        }
+        numberOfDocs = in.getInt();
+        endDocID = in.getInt();
+        int terms = in.getInt();
+        int pairs = Math.toIntExact(in.getLong());
+        docSize = readInts(in, endDocID, Math.max(64, endDocID));
+        docStart = new long[docSize.length];
+        for (int docID = 1; docID < endDocID; docID++) {
+            docStart[docID] = docStart[docID - 1] + docSize[docID - 1];
+        }
+        docFreq = readInts(in, terms, Math.max(64, terms));
+        termIDs = new int[Math.max(1024, pairs)];
+        tfs = new int[Math.max(1024, pairs)];
+        IntBuffer ints = in.asIntBuffer();
+        for (int k = 0; k < pairs; k++) {
+            termIDs[k] = ints.get();
+            tfs[k] = ints.get();
+        }
+        in.position(in.position() + 8 * pairs);
+        closeSpill();
+        parts = new Part[0];
+        spilled = 0;
+        used = pairs;
+    }
+
+    private static int[] readInts(ByteBuffer in, int count, int capacity) {
+        int[] values = new int[capacity];
+        in.asIntBuffer().get(values, 0, count);
+        in.position(in.position() + 4 * count);
+        return values;
+    }
+}
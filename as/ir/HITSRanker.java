@@ -283,7 +283,7 @@ public class HITSRanker {
         // System.out.println(post.size());
         for (int i = 0; i < post.size(); i++) {
             //System.err.println(i);
-            String filename = Index.docNames.get(post.get(i).docID);
+            String filename = Index.docNames.get(post.getDocID(i));
             filename = getFileName(filename);
             //System.err.println(filename);
             int prID = 0;
@@ -7,54 +7,39 @@
 
 package ir;
 
-import java.util.HashMap;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Implements an inverted index as a Hashtable from words to PostingsLists.
+ * Implements an inverted index as an array from term ids to PostingsLists.
  */
 public class HashedIndex implements Index {
 
     /**
-     * The index as a hashtable.
+     * The index as an array indexed by term id. The postings are kept
+     * compressed and are only decoded into a PostingsList when they are asked
+     * for.
      */
-    private HashMap<String, PostingsList> index = new HashMap<String, PostingsList>();
+    private CompressedPostings[] index = new CompressedPostings[1024];
 
     /**
-     * Inserts this token in the hashtable. if token alreday exits, compare docID,
-     * if have same DocID, offset++
+     * Inserts this token in the index. Term and document frequencies are
+     * kept in Index.forwardIndex, which the Indexer fills per document.
      */
-    public void insert(String token, int docID, int offset) {
-
-        if (!index.containsKey(token)) {
-            // if token didn't exit, insert new one
-            index.put(token, new PostingsList());
-
+    public void insert(int termID, int docID, int offset) {
+        if (termID >= index.length) {
+            index = Arrays.copyOf(index, Math.max(index.length * 2, termID + 1));
         }
-        index.get(token).addElements(docID, offset, 0.0);
-
-        if (!Index.termFreq.containsKey(docID)) {
-            Index.termFreq.put(docID, new HashMap<String, Integer>());
-            Index.termFreq.get(docID).put(token, 1);
-
-            if(!Index.docFreq.containsKey(token)){
-                Index.docFreq.put(token,1);
-            }else{
-                Index.docFreq.put(token,Index.docFreq.get(token)+1);
-            }
-        } else {
-            if (!Index.termFreq.get(docID).containsKey(token)) {
-                Index.termFreq.get(docID).put(token, 1);
-                if(!Index.docFreq.containsKey(token)){
-                    Index.docFreq.put(token,1);
-                }else{
-                    Index.docFreq.put(token,Index.docFreq.get(token)+1);
-                }
-            } else {
-                int count = Index.termFreq.get(docID).get(token);
-                Index.termFreq.get(docID).put(token, count + 1);
-            }
+        CompressedPostings postings = index[termID];
+        if (postings == null) {
+            // if token didn't exit, insert new one
+            postings = new CompressedPostings();
+            index[termID] = postings;
         }
-
+        postings.add(docID, offset);
     }
 
     /**
@@ -62,19 +47,100 @@ public class HashedIndex implements Index {
      * index.
      */
     public PostingsList getPostings(String token) {
-
-        if (index.containsKey(token)) {
-            return index.get(token);
+        int termID = Index.dictionary.getID(token);
+        if (termID >= 0 && termID < index.length && index[termID] != null) {
+            return index[termID].decode();
         } else {
             return null;
         }
     }
 
-    //
+    /**
+     * Appends the postings of partial indexes built by other indexing threads.
+     * All docIDs in a partial index must be larger than the docIDs in this
+     * index and in the partial indexes before it. The terms are divided
+     * between <code>numThreads</code> threads, in blocks of term ids.
+     */
+    public void addAll(HashedIndex[] partials, int numThreads) throws InterruptedException {
+        final int numTerms = Index.dictionary.size();
+        if (numTerms > index.length) {
+            index = Arrays.copyOf(index, numTerms);
+        }
+        final int blockSize = 256;
+        final AtomicInteger nextBlock = new AtomicInteger();
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            threads[t] = new Thread(() -> {
+                int block;
+                while ((block = nextBlock.getAndIncrement()) * blockSize < numTerms) {
+                    int end = Math.min(numTerms, (block + 1) * blockSize);
+                    for (int termID = block * blockSize; termID < end; termID++) {
+                        for (HashedIndex partial : partials) {
+                            if (termID >= partial.index.length || partial.index[termID] == null) {
+                                continue;
+                            }
+                            if (index[termID] == null) {
+                                index[termID] = partial.index[termID];
+                            } else {
+                                index[termID].append(partial.index[termID]);
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Writes the postings of all terms: their number, then the term id and
+     * the encoded postings of every term.
+     */
+    public void write(DataOutput out) throws IOException {
+        int count = 0;
+        for (CompressedPostings postings : index) {
+            if (postings != null) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int termID = 0; termID < index.length; termID++) {
+            if (index[termID] != null) {
+                out.writeInt(termID);
+                index[termID].write(out);
+            }
+        }
+    }
 
     /**
-     * No need for cleanup in a HashedIndex.
+     * Replaces the postings with the postings written by <code>write</code>
+     * at the position of the buffer.
+     */
+    public void read(ByteBuffer in) {
+        CompressedPostings[] read = new CompressedPostings[Math.max(1024, Index.dictionary.size())];
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int termID = in.getInt();
+            if (termID >= read.length) {
+                read = Arrays.copyOf(read, Math.max(read.length * 2, termID + 1));
+            }
+            read[termID] = CompressedPostings.read(in);
+        }
+        index = read;
+    }
+
+    /**
+     * Encodes the last document of every postings list and trims the
+     * buffers once indexing is done.
      */
     public void cleanup() {
+        for (CompressedPostings postings : index) {
+            if (postings != null) {
+                postings.seal();
+            }
+        }
     }
 }
@@ -17,24 +17,33 @@ import java.util.Iterator;
 public interface Index {
 
     /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+    public DocumentMap<String> docNames = new DocumentMap<String>( DocInfoStore::name );
     
     /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    public DocumentMap<Integer> docLengths = new DocumentMap<Integer>( DocInfoStore::length );
 
     /** Mapping from link ID to Doc ID */
     public HashMap<Integer,Integer> linkToDocID = new HashMap<Integer,Integer>();
 
-    /** Mapping from document identifiers to term freq */
-    public HashMap<Integer, HashMap<String, Integer>> termFreq = new HashMap<Integer, HashMap<String, Integer>>();
-    public HashMap<String, Integer> docFreq = new HashMap<String, Integer>();
+    /** Mapping from terms to the term ids used by all index structures */
+    public TermDictionary dictionary = new TermDictionary();
+
+    /** Term frequencies per document, and document frequencies per term */
+    public ForwardIndex forwardIndex = new ForwardIndex();
     
-    /** Inserts a token into the index. */
-    public void insert( String token, int docID, int offset );
+    /** Inserts a token, given by its id in the dictionary, into the index. */
+    public void insert( int termID, int docID, int offset );
 
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /** Returns an iterator over the documents of a given term, or null if
+     *  the term is not in the index. */
+    public default DocIterator getIterator( String token ) {
+        PostingsList postings = getPostings( token );
+        return postings == null ? null : new DocIterator.Term( postings );
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
@@ -0,0 +1,123 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An image of an in-memory index in one binary file, from which the engine
+ * can start without indexing the collection again.
+ * <p>
+ * The file holds a header with the start of each section, then the
+ * sections: the terms of Index.dictionary, Index.forwardIndex (term and
+ * document frequencies), the document names and lengths (a DocInfoStore),
+ * the postings of the HashedIndex, and the k-gram index. Each section is
+ * copied into the heap from a memory mapping in bulk, except the document
+ * names, which are read from the mapping when they are asked for.
+ */
+public class IndexSnapshot {
+
+    /**
+     * "IRSS" in ASCII.
+     */
+    public static final int MAGIC = 0x49525353;
+
+    public static final int VERSION = 1;
+
+    /**
+     * The snapshot file name, in PersistentHashedIndex.INDEXDIR.
+     */
+    public static final String SNAPSHOT_FNAME = "snapshot";
+
+    private static final int DICTIONARY = 0, FORWARD = 1, DOCINFO = 2, POSTINGS = 3, KGRAMS = 4, SECTIONS = 5;
+
+    private static final int HEADER_SIZE = 8 + 8 * (SECTIONS + 1);
+
+    public static File file() {
+        return new File(PersistentHashedIndex.INDEXDIR + "/" + SNAPSHOT_FNAME);
+    }
+
+    /**
+     * Writes a snapshot of the index and the k-gram index. The file is
+     * written under another name and then renamed, so an old snapshot stays
+     * valid until the new one is complete.
+     */
+    public static void write(File file, HashedIndex index, KGramIndex kgIndex) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        long[] starts = new long[SECTIONS + 1];
+        try (FileOutputStream fout = new FileOutputStream(temp)) {
+            FileChannel channel = fout.getChannel();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16));
+            out.write(new byte[HEADER_SIZE]);
+            for (int section = 0; section < SECTIONS; section++) {
+                out.flush();
+                starts[section] = channel.position();
+                switch (section) {
+                case DICTIONARY:
+                    Index.dictionary.write(out);
+                    break;
+                case FORWARD:
+                    Index.forwardIndex.write(out);
+                    break;
+                case DOCINFO:
+                    DocInfoStore.write(out, 0, Integer.MAX_VALUE);
+                    break;
+                case POSTINGS:
+                    index.write(out);
+                    break;
+                case KGRAMS:
+                    kgIndex.write(out);
+                    break;
+                }
+            }
+            out.flush();
+            starts[SECTIONS] = channel.position();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION);
+            for (long start : starts) {
+                header.putLong(start);
+            }
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Reads a snapshot into the (empty) index and k-gram index.
+     */
+    public static void read(File file, HashedIndex index, KGramIndex kgIndex) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_SIZE, channel.size()));
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Snapshot " + file + " has the wrong format; the collection has to be indexed again.");
+            }
+            long[] starts = new long[SECTIONS + 1];
+            for (int section = 0; section <= SECTIONS; section++) {
+                starts[section] = header.getLong();
+            }
+            Index.dictionary.read(section(channel, starts, DICTIONARY));
+            Index.forwardIndex.read(section(channel, starts, FORWARD));
+            DocInfoStore docInfo = new DocInfoStore(new MappedFile(channel, channel.size()), starts[DOCINFO]);
+            Index.docNames.attach(docInfo);
+            Index.docLengths.attach(docInfo);
+            index.read(section(channel, starts, POSTINGS));
+            kgIndex.read(section(channel, starts, KGRAMS));
+        }
+    }
+
+    private static ByteBuffer section(FileChannel channel, long[] starts, int section) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, starts[section], starts[section + 1] - starts[section]);
+    }
+}
@@ -10,6 +10,10 @@ package ir;
 import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 
 /**
@@ -29,6 +33,15 @@ public class Indexer {
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /**
+     *  The files indexed before, if the index keeps track of them. Only a
+     *  SegmentedIndex does; every other index is built from all files.
+     */
+    DocumentManifest manifest;
+
+    /** Inverts the files of a sequential run into the index. */
+    private DocumentInverter inverter;
+
     
     /* ----------------------------------------------- */
 
@@ -38,11 +51,27 @@ public class Indexer {
         this.index = index;
         this.kgIndex = kgIndex;
         this.patterns_file = patterns_file;
+        this.inverter = new DocumentInverter( index, kgIndex );
+        if ( index instanceof SegmentedIndex ) {
+            this.manifest = ((SegmentedIndex)index).manifest;
+        }
+    }
+
+
+    /** Makes the next document get the given docID. */
+    public void setNextDocID( int docID ) {
+        lastDocID = docID;
+    }
+
+
+    /** The docID that the next document will get. */
+    public int nextDocID() {
+        return lastDocID;
     }
 
 
     /** Generates a new document identifier as an integer. */
-    private int generateDocID() {
+    int generateDocID() {
         return lastDocID++;
     }
 
@@ -65,20 +94,20 @@ public class Indexer {
                         }
                     }
                 } else {
+                    // Skip files that are already in the index
+                    if ( manifest != null && !manifest.needsIndexing( f ) ) {
+                        return;
+                    }
                     // First register the document and get a docID
                     int docID = generateDocID();
                     if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
                     try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
+                        int length = inverter.invert( f, docID );
+                        Index.docNames.put( docID, f.getPath() );
+                        Index.docLengths.put( docID, length );
+                        if ( manifest != null ) {
+                            manifest.add( f, docID, inverter.checksum );
                         }
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
-                        reader.close();
                     } catch ( IOException e ) {
                         System.err.println( "Warning: IOException during indexing." );
                     }
@@ -88,17 +117,225 @@ public class Indexer {
     }
 
 
+    /**
+     *  Marks the documents of files under the given directories that were
+     *  indexed before but not found by this run as deleted. Does nothing
+     *  unless the index has a manifest.
+     */
+    public void removeDeletedFiles( ArrayList<String> dirNames ) {
+        if ( manifest != null ) {
+            ArrayList<String> paths = new ArrayList<String>();
+            for ( String dirName : dirNames ) {
+                paths.add( new File( dirName ).getPath() );
+            }
+            int deleted = manifest.deleteUnseen( paths );
+            if ( deleted > 0 ) System.err.println( deleted + " files were deleted" );
+        }
+    }
+
+
+    /**
+     *  Tokenizes and indexes all files under the given directories on
+     *  <code>numThreads</code> threads.
+     *
+     *  The files are listed first, in the order processFiles visits them, so
+     *  every file gets the same docID as in a sequential run. Each thread
+     *  then indexes a contiguous range of files, of roughly equal size in
+     *  bytes, into its own HashedIndex and KGramIndex. Finally the partial
+     *  indexes are merged into this Indexer's indexes, again in parallel.
+     *  If a thread fails, its exception is rethrown and nothing is merged.
+     */
+    public void processFilesInParallel( ArrayList<String> dirNames, int numThreads ) {
+        if ( !(index instanceof HashedIndex) ) {
+            System.err.println( "Parallel indexing needs a HashedIndex, indexing on a single thread." );
+            for ( String dirName : dirNames ) {
+                processFiles( new File( dirName ), true );
+            }
+            return;
+        }
+        ArrayList<File> files = new ArrayList<File>();
+        for ( String dirName : dirNames ) {
+            listFiles( new File( dirName ), files );
+        }
+        final int firstDocID = lastDocID;
+        lastDocID += files.size();
+
+        // Split the files into ranges of about the same number of bytes
+        long[] sizes = new long[files.size() + 1];
+        for ( int i=0; i<files.size(); i++ ) {
+            sizes[i+1] = sizes[i] + files.get( i ).length();
+        }
+        int[] bounds = new int[numThreads + 1];
+        for ( int t=1, i=0; t<=numThreads; t++ ) {
+            long target = sizes[files.size()] * t / numThreads;
+            while ( i < files.size() && sizes[i] < target ) {
+                i++;
+            }
+            bounds[t] = t == numThreads ? files.size() : i;
+        }
+
+        final String[] names = new String[files.size()];
+        final int[] lengths = new int[files.size()];
+        final HashedIndex[] partials = new HashedIndex[numThreads];
+        final KGramIndex[] kgPartials = new KGramIndex[numThreads];
+        final AtomicInteger indexed = new AtomicInteger();
+        // the first failure of a thread; the others stop at their next file
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[numThreads];
+        for ( int t=0; t<numThreads; t++ ) {
+            final int from = bounds[t], to = bounds[t+1];
+            partials[t] = new HashedIndex();
+            kgPartials[t] = kgIndex == null ? null : new KGramIndex( kgIndex.getK(), kgIndex.dictionary );
+            final DocumentInverter partialInverter = new DocumentInverter( partials[t], kgPartials[t] );
+            threads[t] = new Thread( () -> {
+                try {
+                    for ( int i=from; i<to && failure.get() == null; i++ ) {
+                        int count = indexed.getAndIncrement();
+                        if ( count%1000 == 0 ) System.err.println( "Indexed " + count + " files" );
+                        try {
+                            lengths[i] = partialInverter.invert( files.get( i ), firstDocID + i );
+                            names[i] = files.get( i ).getPath();
+                        } catch ( IOException e ) {
+                            System.err.println( "Warning: IOException during indexing." );
+                        }
+                    }
+                } catch ( RuntimeException | Error e ) {
+                    if ( !failure.compareAndSet( null, e ) ) {
+                        failure.get().addSuppressed( e );
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            for ( Thread thread : threads ) {
+                thread.join();
+            }
+            // The partial indexes of a failed run are incomplete; leave the
+            // index as it was
+            Throwable failed = failure.get();
+            if ( failed instanceof Error ) {
+                throw (Error)failed;
+            } else if ( failed != null ) {
+                throw (RuntimeException)failed;
+            }
+            for ( int i=0; i<files.size(); i++ ) {
+                if ( names[i] != null ) {
+                    Index.docNames.put( firstDocID + i, names[i] );
+                    Index.docLengths.put( firstDocID + i, lengths[i] );
+                }
+            }
+            long startTime = System.currentTimeMillis();
+            ((HashedIndex)index).addAll( partials, numThreads );
+            if ( kgIndex != null ) {
+                kgIndex.addAll( kgPartials, numThreads );
+            }
+            System.err.println( "Merged " + numThreads + " partial indexes in " + (System.currentTimeMillis() - startTime) + " ms" );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     *  Tokenizes and indexes all files under the given directories with an
+     *  IndexingPipeline, so that reading files overlaps with tokenizing and
+     *  inverting them. Works with any Index.
+     */
+    public void processFilesPipelined( ArrayList<String> dirNames, int tokenizerThreads ) {
+        try {
+            new IndexingPipeline( this, tokenizerThreads, 256 ).run( dirNames );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     *  Lists the readable files under @code{f} in the order processFiles
+     *  visits them.
+     */
+    private void listFiles( File f, ArrayList<File> files ) {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        listFiles( new File( f, fs[i] ), files );
+                    }
+                }
+            } else {
+                files.add( f );
+            }
+        }
+    }
+
+
+    /**
+     *  Tokenizes files and inserts their tokens into one index and k-gram
+     *  index. Every indexing thread has its own DocumentInverter.
+     */
+    private class DocumentInverter {
+
+        Index target;
+
+        KGramIndex kgTarget;
+
+        /** Term ids of the tokens of the document being indexed. */
+        int[] docTerms = new int[1024];
+
+        /** CRC32C checksum of the last file indexed. */
+        long checksum;
+
+        DocumentInverter( Index target, KGramIndex kgTarget ) {
+            this.target = target;
+            this.kgTarget = kgTarget;
+        }
+
+        /**
+         *  Indexes the file @code{f} as document @code{docID}, and adds it
+         *  to Index.forwardIndex.
+         *
+         *  @return The number of tokens in the file.
+         */
+        int invert( File f, int docID ) throws IOException {
+            CheckedInputStream in = new CheckedInputStream( new FileInputStream(f), new CRC32C() );
+            Reader reader = new InputStreamReader( in, StandardCharsets.UTF_8 );
+            try {
+                Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+                int offset = 0;
+                while ( tok.hasMoreTokens() ) {
+                    int termID = Index.dictionary.add( tok.nextToken() );
+                    target.insert( termID, docID, offset );
+                    if ( kgTarget != null )
+                        kgTarget.insert( termID );
+                    docTerms = VByte.ensureCapacity( docTerms, offset );
+                    docTerms[offset++] = termID;
+                }
+                Index.forwardIndex.addDocument( docID, docTerms, offset );
+                while ( in.skip( Long.MAX_VALUE ) > 0 || in.read() >= 0 ) {
+                    // checksum the rest of the file
+                }
+                checksum = in.getChecksum().getValue();
+                return offset;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+
     /* ----------------------------------------------- */
 
 
     /**
-     *  Indexes one token.
+     *  Indexes one token, given by its id in Index.dictionary.
      */
-    public void insertIntoIndex( int docID, String token, int offset ) {
-        index.insert( token, docID, offset );
+    public void insertIntoIndex( int docID, int termID, int offset ) {
+        index.insert( termID, docID, offset );
         
         if (kgIndex != null)
-            kgIndex.insert(token);
+            kgIndex.insert(termID);
             //System.err.println(token);
             
     }
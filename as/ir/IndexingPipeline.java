@@ -0,0 +1,340 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Indexes files in four stages that run at the same time and are connected
+ * by bounded queues:
+ * <ol>
+ * <li>walk: lists the files and gives them docIDs, in the order
+ * Indexer.processFiles visits them;</li>
+ * <li>read: reads each file into memory on its own (virtual) thread;</li>
+ * <li>tokenize: turns the file contents into term ids, on several threads;</li>
+ * <li>invert: inserts the documents into the index, one thread, in docID
+ * order.</li>
+ * </ol>
+ * At most <code>capacity</code> documents are between the walk and the
+ * invert stage at any time, so a slow stage holds the others back instead of
+ * letting documents pile up in memory. When indexing is done, every stage
+ * reports its throughput and how long it was busy; the stage that was busy
+ * nearly all the time is the bottleneck.
+ */
+public class IndexingPipeline {
+
+    /**
+     * A document on its way through the pipeline.
+     */
+    private static class Document {
+        final int docID;
+        final File file;
+        byte[] content;
+        int size;
+        /** CRC32C checksum of the contents. */
+        long checksum;
+        /** Term ids of the tokens, or null if the file could not be read. */
+        final CompletableFuture<int[]> tokens = new CompletableFuture<int[]>();
+        int length;
+
+        Document(int docID, File file) {
+            this.docID = docID;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Marks the end of the documents in a queue.
+     */
+    private static final Document END = new Document(-1, null);
+
+    /**
+     * Counters of one stage.
+     */
+    private static class Stage {
+        final String name;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void add(long items, long bytes, long startNanos) {
+            this.items.addAndGet(items);
+            this.bytes.addAndGet(bytes);
+            busyNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+
+        void report(int threads, long elapsedNanos) {
+            double seconds = elapsedNanos / 1e9;
+            double busy = busyNanos.get() / 1e9 / threads;
+            System.err.println(String.format("  %-8s %2d thread(s) %7d files %9.1f files/s %7.1f MB/s  busy %5.1f%%",
+                    name, threads, items.get(), items.get() / seconds,
+                    bytes.get() / 1e6 / seconds, 100 * busy / seconds));
+        }
+    }
+
+    private final Indexer indexer;
+    private final int tokenizerThreads;
+    private final int capacity;
+
+    private final BlockingQueue<Document> toTokenize;
+    private final BlockingQueue<Document> toInvert;
+
+    private final Stage walk = new Stage("walk");
+    private final Stage read = new Stage("read");
+    private final Stage tokenize = new Stage("tokenize");
+    private final Stage invert = new Stage("invert");
+
+    /**
+     * Number of file reads in progress, for the report.
+     */
+    private int maxReads = 0;
+    private final AtomicLong reads = new AtomicLong();
+
+    /**
+     * @param tokenizerThreads Number of threads of the tokenize stage.
+     * @param capacity The maximal number of documents in the pipeline.
+     */
+    public IndexingPipeline(Indexer indexer, int tokenizerThreads, int capacity) {
+        this.indexer = indexer;
+        this.tokenizerThreads = tokenizerThreads;
+        this.capacity = capacity;
+        toTokenize = new ArrayBlockingQueue<Document>(capacity);
+        toInvert = new ArrayBlockingQueue<Document>(capacity);
+    }
+
+    /**
+     * Indexes all files under the given directories and waits until they
+     * are in the index.
+     */
+    public void run(ArrayList<String> dirNames) throws InterruptedException {
+        long startTime = System.nanoTime();
+        ExecutorService readers = newReaderExecutor();
+        Thread walker = new Thread(() -> {
+            try {
+                try {
+                    for (String dirName : dirNames) {
+                        walk(new File(dirName), readers);
+                    }
+                } catch (RuntimeException | Error e) {
+                    // let the invert stage end after the files found so far
+                    toInvert.put(END);
+                    throw e;
+                }
+                toInvert.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "indexer-walk");
+        Thread[] tokenizers = new Thread[tokenizerThreads];
+        for (int t = 0; t < tokenizerThreads; t++) {
+            tokenizers[t] = new Thread(this::tokenizeAll, "indexer-tokenize-" + t);
+            tokenizers[t].start();
+        }
+        walker.start();
+        boolean inverted = false;
+        try {
+            invertAll();
+            inverted = true;
+        } finally {
+            if (inverted) {
+                for (int t = 0; t < tokenizerThreads; t++) {
+                    toTokenize.put(END);
+                }
+            } else {
+                // The other stages may be blocked on full queues that
+                // nobody takes from any more
+                walker.interrupt();
+                for (Thread tokenizer : tokenizers) {
+                    tokenizer.interrupt();
+                }
+                readers.shutdownNow();
+            }
+            walker.join();
+            for (Thread tokenizer : tokenizers) {
+                tokenizer.join();
+            }
+            readers.shutdown();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        System.err.println(String.format("Pipelined indexing of %d files in %.1f s (at most %d documents in flight, %d concurrent reads):",
+                invert.items.get(), elapsed / 1e9, capacity, maxReads));
+        walk.report(1, elapsed);
+        read.report(Math.max(1, maxReads), elapsed);
+        tokenize.report(tokenizerThreads, elapsed);
+        invert.report(1, elapsed);
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per file read if the
+     * Java runtime has them (Java 21 and later), and a thread pool of
+     * <code>capacity</code> threads otherwise.
+     */
+    private ExecutorService newReaderExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(capacity, r -> {
+                Thread thread = new Thread(r, "indexer-read");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Walk stage: gives every file a docID, starts reading it, and queues it
+     * for inversion. Blocks when the pipeline is full.
+     */
+    private void walk(File f, ExecutorService readers) throws InterruptedException {
+        if (f.canRead()) {
+            if (f.isDirectory()) {
+                String[] fs = f.list();
+                if (fs != null) {
+                    for (int i = 0; i < fs.length; i++) {
+                        walk(new File(f, fs[i]), readers);
+                    }
+                }
+            } else if (indexer.manifest == null || indexer.manifest.needsIndexing(f)) {
+                long start = System.nanoTime();
+                Document doc = new Document(indexer.generateDocID(), f);
+                readers.execute(() -> read(doc));
+                walk.add(1, 0, start);
+                toInvert.put(doc);
+            }
+        }
+    }
+
+    /**
+     * Read stage: reads the whole file and hands it to the tokenizers.
+     */
+    private void read(Document doc) {
+        long start = System.nanoTime();
+        long inProgress = reads.incrementAndGet();
+        synchronized (this) {
+            maxReads = (int) Math.max(maxReads, inProgress);
+        }
+        try {
+            doc.content = Files.readAllBytes(doc.file.toPath());
+            doc.size = doc.content.length;
+            CRC32C crc = new CRC32C();
+            crc.update(doc.content, 0, doc.size);
+            doc.checksum = crc.getValue();
+            read.add(1, doc.size, start);
+            reads.decrementAndGet();
+            toTokenize.put(doc);
+        } catch (IOException e) {
+            reads.decrementAndGet();
+            System.err.println("Warning: IOException during indexing.");
+            doc.tokens.complete(null);
+        } catch (InterruptedException e) {
+            reads.decrementAndGet();
+            doc.tokens.complete(null);
+        } catch (RuntimeException | Error e) {
+            reads.decrementAndGet();
+            doc.tokens.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Tokenize stage: one of <code>tokenizerThreads</code> threads turning
+     * file contents into term ids.
+     */
+    private void tokenizeAll() {
+        int[] buffer = new int[1024];
+        try {
+            while (true) {
+                Document doc = toTokenize.take();
+                if (doc == END) {
+                    return;
+                }
+                long start = System.nanoTime();
+                int count = 0;
+                try {
+                    Reader reader = new InputStreamReader(new ByteArrayInputStream(doc.content), StandardCharsets.UTF_8);
+                    Tokenizer tok = new Tokenizer(reader, true, false, true, indexer.patterns_file);
+                    while (tok.hasMoreTokens()) {
+                        buffer = VByte.ensureCapacity(buffer, count);
+                        buffer[count++] = Index.dictionary.add(tok.nextToken());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Warning: IOException during indexing.");
+                    doc.tokens.complete(null);
+                    continue;
+                } catch (RuntimeException | Error e) {
+                    // the invert stage waits for the tokens of every document
+                    doc.tokens.completeExceptionally(e);
+                    if (e instanceof Error) {
+                        throw e;
+                    }
+                    continue;
+                }
+                tokenize.add(1, doc.content.length, start);
+                doc.length = count;
+                doc.content = null;
+                int[] tokens = new int[count];
+                System.arraycopy(buffer, 0, tokens, 0, count);
+                doc.tokens.complete(tokens);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Invert stage: inserts the documents into the index in docID order,
+     * so the postings lists stay sorted.
+     */
+    private void invertAll() throws InterruptedException {
+        Index index = indexer.index;
+        KGramIndex kgIndex = indexer.kgIndex;
+        while (true) {
+            Document doc = toInvert.take();
+            if (doc == END) {
+                return;
+            }
+            int[] tokens;
+            try {
+                tokens = doc.tokens.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                System.err.println("Warning: could not index " + doc.file);
+                e.getCause().printStackTrace();
+                tokens = null;
+            }
+            if (doc.docID % 1000 == 0) System.err.println("Indexed " + doc.docID + " files");
+            if (tokens == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            for (int offset = 0; offset < tokens.length; offset++) {
+                index.insert(tokens[offset], doc.docID, offset);
+                if (kgIndex != null) {
+                    kgIndex.insert(tokens[offset]);
+                }
+            }
+            Index.forwardIndex.addDocument(doc.docID, tokens, tokens.length);
+            Index.docNames.put(doc.docID, doc.file.getPath());
+            Index.docLengths.put(doc.docID, doc.length);
+            if (indexer.manifest != null) {
+                indexer.manifest.add(doc.file, doc.docID, doc.checksum);
+            }
+            invert.add(1, doc.size, start);
+        }
+    }
+}
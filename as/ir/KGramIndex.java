@@ -10,38 +10,42 @@ package ir;
 import java.io.*;
 import java.util.regex.Pattern;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer, String> id2term = new HashMap<Integer, String>();
+    /** Mapping between term strings and term ids */
+    TermDictionary dictionary;
 
-    /** Mapping from term strings to term ids */
-    HashMap<String, Integer> term2id = new HashMap<String, Integer>();
+    /** The ids of the terms whose k-grams are in the index */
+    BitSet indexedTerms = new BitSet();
 
     /** Index from k-grams to list of term ids that contain the k-gram */
     HashMap<String, List<KGramPostingsEntry>> index = new HashMap<String, List<KGramPostingsEntry>>();
 
-    /** The ID of the last processed term */
-    int lastTermID = -1;
-
     /** Number of symbols to form a K-gram */
     int K = 2;
 
+    /**
+     * The k-grams of a persistent index, looked up on disk; the k-grams of
+     * terms added since are in <code>index</code>.
+     */
+    MappedKGramIndex mapped;
+
     public KGramIndex(int k) {
+        this(k, Index.dictionary);
+    }
+
+    public KGramIndex(int k, TermDictionary dictionary) {
         K = k;
+        this.dictionary = dictionary;
         if (k <= 0) {
             System.err.println("The K-gram index can't be constructed for a negative K value");
             System.exit(1);
         }
     }
 
-    /** Generate the ID for an unknown term */
-    private int generateTermID() {
-        return ++lastTermID;
-    }
-
     public int getK() {
         return K;
     }
@@ -84,13 +88,17 @@ public class KGramIndex {
 
     /** Inserts all k-grams from a token into the index. */
     public void insert(String token) {
+        insert(dictionary.add(token));
+    }
+
+    /** Inserts all k-grams from a term, given by its id, into the index. */
+    public void insert(int newid) {
         // Whether this token is already indexed or not
-        if (getIDByTerm(token) != null) {
+        if (indexedTerms.get(newid) || mapped != null && newid < mapped.numberOfTerms()) {
             return;
         }
-        int newid = generateTermID();
-        term2id.put(token, newid);
-        id2term.put(newid, token);
+        indexedTerms.set(newid);
+        String token = dictionary.getTerm(newid);
         int kgramNum = token.length() + 3 - getK();
         KGramPostingsEntry a = new KGramPostingsEntry(newid);
 
@@ -102,32 +110,201 @@ public class KGramIndex {
             if (!index.containsKey(kgrams)) {
                 index.put(kgrams, new ArrayList<KGramPostingsEntry>());
             }
-            // deduplication
-            if (!index.get(kgrams).contains(a)) {
-                index.get(kgrams).add(a);
+            // keep the postings sorted by term id (terms need not be
+            // inserted in id order) and deduplicated
+            List<KGramPostingsEntry> postings = index.get(kgrams);
+            int pos = postings.size();
+            while (pos > 0 && postings.get(pos - 1).tokenID > newid) {
+                pos--;
+            }
+            if (pos == 0 || postings.get(pos - 1).tokenID != newid) {
+                postings.add(pos, a);
+            }
+
+        }
+
+    }
+
+    /**
+     * Merges partial k-gram indexes built by other indexing threads over the
+     * same dictionary. The k-grams are divided between <code>numThreads</code>
+     * threads; the merged postings are sorted by term id and deduplicated.
+     */
+    public void addAll(KGramIndex[] partials, int numThreads) throws InterruptedException {
+        ArrayList<String> kgrams = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>(index.keySet());
+        kgrams.addAll(index.keySet());
+        for (KGramIndex partial : partials) {
+            indexedTerms.or(partial.indexedTerms);
+            for (String kgram : partial.index.keySet()) {
+                if (seen.add(kgram)) {
+                    kgrams.add(kgram);
+                }
+            }
+        }
+
+        List<HashMap<String, List<KGramPostingsEntry>>> merged = new ArrayList<HashMap<String, List<KGramPostingsEntry>>>();
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int first = t;
+            final HashMap<String, List<KGramPostingsEntry>> part = new HashMap<String, List<KGramPostingsEntry>>();
+            merged.add(part);
+            threads[t] = new Thread(() -> {
+                for (int i = first; i < kgrams.size(); i += numThreads) {
+                    String kgram = kgrams.get(i);
+                    ArrayList<KGramPostingsEntry> postings = new ArrayList<KGramPostingsEntry>();
+                    if (index.containsKey(kgram)) {
+                        postings.addAll(index.get(kgram));
+                    }
+                    for (KGramIndex partial : partials) {
+                        if (partial.index.containsKey(kgram)) {
+                            postings.addAll(partial.index.get(kgram));
+                        }
+                    }
+                    postings.sort((a, b) -> Integer.compare(a.tokenID, b.tokenID));
+                    int n = 0;
+                    for (int j = 0; j < postings.size(); j++) {
+                        if (n == 0 || postings.get(n - 1).tokenID != postings.get(j).tokenID) {
+                            postings.set(n++, postings.get(j));
+                        }
+                    }
+                    postings.subList(n, postings.size()).clear();
+                    postings.trimToSize();
+                    part.put(kgram, postings);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (HashMap<String, List<KGramPostingsEntry>> part : merged) {
+            index.putAll(part);
+        }
+    }
+
+    /**
+     * Writes K, the ids of the indexed terms, and every k-gram with the
+     * term ids of its postings.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(K);
+        long[] words = indexedTerms.toLongArray();
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+        out.writeInt(index.size());
+        for (Map.Entry<String, List<KGramPostingsEntry>> entry : index.entrySet()) {
+            byte[] kgram = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(kgram.length);
+            out.write(kgram);
+            out.writeInt(entry.getValue().size());
+            for (KGramPostingsEntry posting : entry.getValue()) {
+                out.writeInt(posting.tokenID);
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the index with the contents written by
+     * <code>write</code> at the position of the buffer. All k-grams with a
+     * term share one postings entry for that term.
+     */
+    public void read(ByteBuffer in) throws IOException {
+        if (in.getInt() != K) {
+            throw new IOException("The saved k-gram index has another K.");
+        }
+        long[] words = new long[in.getInt()];
+        in.asLongBuffer().get(words);
+        in.position(in.position() + 8 * words.length);
+        indexedTerms = BitSet.valueOf(words);
+        KGramPostingsEntry[] entries = new KGramPostingsEntry[indexedTerms.length()];
+        int count = in.getInt();
+        HashMap<String, List<KGramPostingsEntry>> read = new HashMap<String, List<KGramPostingsEntry>>(2 * count);
+        int[] ids = new int[64];
+        for (int i = 0; i < count; i++) {
+            byte[] kgram = new byte[in.getInt()];
+            in.get(kgram);
+            int size = in.getInt();
+            if (size > ids.length) {
+                ids = new int[Math.max(size, 2 * ids.length)];
+            }
+            in.asIntBuffer().get(ids, 0, size);
+            in.position(in.position() + 4 * size);
+            ArrayList<KGramPostingsEntry> postings = new ArrayList<KGramPostingsEntry>(size);
+            for (int j = 0; j < size; j++) {
+                int id = ids[j];
+                if (entries[id] == null) {
+                    entries[id] = new KGramPostingsEntry(id);
+                }
+                postings.add(entries[id]);
             }
+            read.put(new String(kgram, StandardCharsets.UTF_8), postings);
+        }
+        index = read;
+    }
 
+    /**
+     * Looks k-grams up in a file written by <code>save</code> from now on,
+     * as well as in memory.
+     */
+    public void open(File file) throws IOException {
+        MappedKGramIndex opened = new MappedKGramIndex(file);
+        if (opened.getK() != K) {
+            throw new IOException("The k-gram file " + file + " has K = " + opened.getK() + ", not " + K + ".");
         }
+        mapped = opened;
+    }
 
+    /**
+     * Writes the k-grams of all terms in the dictionary to a file, and
+     * looks them up there instead of in memory from now on.
+     */
+    public void save(File file) throws IOException {
+        MappedKGramIndex.write(file, dictionary, K);
+        open(file);
+        index = new HashMap<String, List<KGramPostingsEntry>>();
+        indexedTerms = new BitSet();
     }
 
     /** Get postings for the given k-gram */
     public List<KGramPostingsEntry> getPostings(String kgram) {
-        if (index.containsKey(kgram)) {
-            return index.get(kgram);
-        } else {
-            return null;
+        List<KGramPostingsEntry> postings = index.get(kgram);
+        int[] ids = mapped == null ? null : mapped.getTermIDs(kgram);
+        if (ids == null) {
+            return postings;
+        }
+        // Merge the term ids on disk with the ones added since
+        List<KGramPostingsEntry> merged = new ArrayList<KGramPostingsEntry>(ids.length);
+        int j = 0;
+        for (int id : ids) {
+            while (postings != null && j < postings.size() && postings.get(j).tokenID < id) {
+                merged.add(postings.get(j++));
+            }
+            if (postings != null && j < postings.size() && postings.get(j).tokenID == id) {
+                j++;
+            }
+            merged.add(new KGramPostingsEntry(id));
         }
+        while (postings != null && j < postings.size()) {
+            merged.add(postings.get(j++));
+        }
+        return merged;
     }
 
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        int id = dictionary.getID(term);
+        if (id < 0) {
+            return null;
+        }
+        return indexedTerms.get(id) || mapped != null && id < mapped.numberOfTerms() ? id : null;
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        return dictionary.getTerm(id);
     }
 
     /** Processing Wildcard Queries */
@@ -214,7 +391,7 @@ public class KGramIndex {
         HashMap<String, String> args = decodeArgs(arguments);
 
         int k = Integer.parseInt(args.getOrDefault("k", "3"));
-        KGramIndex kgIndex = new KGramIndex(k);
+        KGramIndex kgIndex = new KGramIndex(k, new TermDictionary());
 
         File f = new File(args.get("file"));
         Reader reader = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8);
@@ -0,0 +1,96 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a file. A MappedByteBuffer cannot be larger
+ * than 2 GB, so the file is mapped in windows of 2^30 bytes; reads that
+ * cross the end of a window are put together from both windows.
+ * <p>
+ * Only absolute reads are used, so a MappedFile can be shared by several
+ * threads. Writes to the file through other channels are seen by the
+ * mapping, as long as they stay within the mapped size.
+ */
+public class MappedFile {
+
+    private static final int WINDOW_BITS = 30;
+
+    private final MappedByteBuffer[] windows;
+    private final int windowBits;
+    private final long windowMask;
+    private final long size;
+
+    /**
+     * Maps the first <code>size</code> bytes of the file.
+     */
+    public MappedFile(FileChannel channel, long size) throws IOException {
+        this(channel, size, WINDOW_BITS);
+    }
+
+    MappedFile(FileChannel channel, long size, int windowBits) throws IOException {
+        this.size = size;
+        this.windowBits = windowBits;
+        this.windowMask = (1L << windowBits) - 1;
+        windows = new MappedByteBuffer[(int) ((size + windowMask) >>> windowBits)];
+        for (int i = 0; i < windows.length; i++) {
+            long start = (long) i << windowBits;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowMask + 1, size - start));
+        }
+    }
+
+    /**
+     * Number of bytes mapped.
+     */
+    public long size() {
+        return size;
+    }
+
+    public byte get(long pos) {
+        return windows[(int) (pos >>> windowBits)].get((int) (pos & windowMask));
+    }
+
+    public int getInt(long pos) {
+        int offset = (int) (pos & windowMask);
+        MappedByteBuffer window = windows[(int) (pos >>> windowBits)];
+        if (offset + 4 <= window.limit()) {
+            return window.getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (get(pos + i) & 0xFF);
+        }
+        return value;
+    }
+
+    public long getLong(long pos) {
+        int offset = (int) (pos & windowMask);
+        MappedByteBuffer window = windows[(int) (pos >>> windowBits)];
+        if (offset + 8 <= window.limit()) {
+            return window.getLong(offset);
+        }
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copies <code>length</code> bytes starting at <code>pos</code> into
+     * <code>dst</code>.
+     */
+    public void get(long pos, byte[] dst, int off, int length) {
+        while (length > 0) {
+            MappedByteBuffer window = windows[(int) (pos >>> windowBits)];
+            int offset = (int) (pos & windowMask);
+            int n = Math.min(length, window.limit() - offset);
+            window.get(offset, dst, off, n);
+            pos += n;
+            off += n;
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A k-gram index in a file, which is looked up through a memory mapping
+ * without reading it into the heap.
+ * <p>
+ * The file holds a header, the end offsets of the k-grams in a blob of
+ * their UTF-8 bytes, the start offsets of their postings, the k-gram blob
+ * and the postings blob. The k-grams are sorted, so a lookup is a binary
+ * search; the postings of a k-gram are the number of terms followed by the
+ * gaps between their term ids, as varints.
+ */
+public class MappedKGramIndex {
+
+    /**
+     * "IRKG" in ASCII.
+     */
+    public static final int MAGIC = 0x49524B47;
+
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 20;
+
+    private final MappedFile map;
+    private final int k;
+    private final int numberOfTerms;
+    private final int numberOfKGrams;
+    private final long postingsStarts;
+    private final long kgramsStart;
+    private final long postingsStart;
+
+    public MappedKGramIndex(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            map = new MappedFile(raf.getChannel(), raf.length());
+        }
+        if (map.size() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException("K-gram file " + file + " has the wrong format; the index has to be rebuilt.");
+        }
+        k = map.getInt(8);
+        numberOfTerms = map.getInt(12);
+        numberOfKGrams = map.getInt(16);
+        postingsStarts = HEADER_SIZE + 4L * numberOfKGrams;
+        kgramsStart = postingsStarts + 8L * (numberOfKGrams + 1);
+        postingsStart = kgramsStart + (numberOfKGrams == 0 ? 0 : map.getInt(postingsStarts - 4));
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Number of terms of the dictionary when the file was written; the
+     * k-grams of the terms with smaller ids are in the file.
+     */
+    public int numberOfTerms() {
+        return numberOfTerms;
+    }
+
+    /**
+     * The sorted ids of the terms containing a k-gram, or null if there are
+     * none.
+     */
+    public int[] getTermIDs(String kgram) {
+        int low = 0, high = numberOfKGrams - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = kgram(mid).compareTo(kgram);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return termIDs(mid);
+            }
+        }
+        return null;
+    }
+
+    private String kgram(int i) {
+        int start = i == 0 ? 0 : map.getInt(HEADER_SIZE + 4L * (i - 1));
+        int end = map.getInt(HEADER_SIZE + 4L * i);
+        byte[] bytes = new byte[end - start];
+        map.get(kgramsStart + start, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int[] termIDs(int i) {
+        long start = map.getLong(postingsStarts + 8L * i);
+        long end = map.getLong(postingsStarts + 8L * (i + 1));
+        byte[] bytes = new byte[(int) (end - start)];
+        map.get(postingsStart + start, bytes, 0, bytes.length);
+        VByte.Reader reader = new VByte.Reader(bytes, 0);
+        int[] ids = new int[reader.readInt()];
+        int id = 0;
+        for (int j = 0; j < ids.length; j++) {
+            id += reader.readInt();
+            ids[j] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Writes the k-gram index of all terms in the dictionary.
+     */
+    public static void write(File file, TermDictionary dictionary, int k) throws IOException {
+        int numberOfTerms = dictionary.size();
+        HashMap<String, TermIDs> kgrams = new HashMap<String, TermIDs>();
+        for (int id = 0; id < numberOfTerms; id++) {
+            String term = "^" + dictionary.getTerm(id) + "$";
+            for (int i = 0; i + k <= term.length(); i++) {
+                String kgram = term.substring(i, i + k);
+                TermIDs ids = kgrams.get(kgram);
+                if (ids == null) {
+                    ids = new TermIDs();
+                    kgrams.put(kgram, ids);
+                }
+                ids.add(id);
+            }
+        }
+        String[] sorted = kgrams.keySet().toArray(new String[kgrams.size()]);
+        Arrays.sort(sorted);
+
+        try (FileOutputStream fout = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16))) {
+            byte[][] bytes = new byte[sorted.length][];
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(k);
+            out.writeInt(numberOfTerms);
+            out.writeInt(sorted.length);
+            int end = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                bytes[i] = sorted[i].getBytes(StandardCharsets.UTF_8);
+                end += bytes[i].length;
+                out.writeInt(end);
+            }
+            byte[][] postings = new byte[sorted.length][];
+            long start = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                postings[i] = kgrams.get(sorted[i]).encode();
+                out.writeLong(start);
+                start += postings[i].length;
+            }
+            out.writeLong(start);
+            for (byte[] kgram : bytes) {
+                out.write(kgram);
+            }
+            for (byte[] encoded : postings) {
+                out.write(encoded);
+            }
+            out.flush();
+            fout.getChannel().force(false);
+        }
+    }
+
+    /**
+     * The id gaps of the terms containing a k-gram, added in increasing id
+     * order.
+     */
+    private static class TermIDs {
+        byte[] gaps = new byte[16];
+        int length = 0;
+        int count = 0;
+        int last = 0;
+
+        void add(int id) {
+            if (count > 0 && id == last) {
+                return;
+            }
+            gaps = VByte.ensureCapacity(gaps, length, VByte.MAX_BYTES);
+            length = VByte.write(gaps, length, id - last);
+            last = id;
+            count++;
+        }
+
+        /**
+         * The number of terms followed by the gaps.
+         */
+        byte[] encode() {
+            byte[] encoded = new byte[VByte.MAX_BYTES + length];
+            int pos = VByte.write(encoded, 0, count);
+            System.arraycopy(gaps, 0, encoded, pos, length);
+            return Arrays.copyOf(encoded, pos + length);
+        }
+    }
+}
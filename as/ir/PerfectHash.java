@@ -0,0 +1,235 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A minimal perfect hash function over a fixed set of terms: it maps each
+ * of the n terms to a different slot in 0 to n-1, using about one int per
+ * four terms.
+ * <p>
+ * It is built by hashing and displacing: the terms are first hashed into
+ * n/4 buckets, and every bucket gets a seed such that the seeded hashes of
+ * its terms land in slots that are still free. Buckets are placed largest
+ * first, while the table is still empty. A lookup hashes the term once,
+ * and the hash gives its bucket, its slot (with the bucket's seed) and a
+ * fingerprint, which the caller stores in the slot to tell terms outside
+ * the set apart.
+ */
+public class PerfectHash {
+
+    /**
+     * "IRMP" in ASCII.
+     */
+    public static final int MAGIC = 0x49524D50;
+
+    public static final int VERSION = 1;
+
+    /**
+     * Average number of terms per bucket.
+     */
+    private static final int BUCKET_SIZE = 4;
+
+    /**
+     * Seeds tried for a bucket before starting over with another salt.
+     */
+    private static final int MAX_SEED = 1 << 24;
+
+    private final int n;
+    private final int salt;
+    private final int[] seeds;
+
+    private PerfectHash(int n, int salt, int[] seeds) {
+        this.n = n;
+        this.salt = salt;
+        this.seeds = seeds;
+    }
+
+    /**
+     * Builds a perfect hash function for the given (distinct) terms.
+     */
+    public static PerfectHash build(String[] terms) {
+        for (int salt = 0;; salt++) {
+            PerfectHash mph = build(terms, salt);
+            if (mph != null) {
+                return mph;
+            }
+        }
+    }
+
+    /**
+     * Returns null if some bucket could not be placed, which only happens if
+     * two terms have the same 64-bit hash.
+     */
+    private static PerfectHash build(String[] terms, int salt) {
+        int n = terms.length;
+        int buckets = Math.max(1, n / BUCKET_SIZE);
+        long[] hashes = new long[n];
+        int[] bucketStart = new int[buckets + 1];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(terms[i], salt);
+            bucketStart[bucket(hashes[i], buckets) + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        // The hashes of the terms, grouped by bucket
+        long[] grouped = new long[n];
+        int[] fill = Arrays.copyOf(bucketStart, buckets);
+        for (int i = 0; i < n; i++) {
+            grouped[fill[bucket(hashes[i], buckets)]++] = hashes[i];
+        }
+
+        // Buckets sorted by decreasing size (counting sort)
+        int maxSize = 0;
+        for (int b = 0; b < buckets; b++) {
+            maxSize = Math.max(maxSize, bucketStart[b + 1] - bucketStart[b]);
+        }
+        int[] sizeStart = new int[maxSize + 2];
+        for (int b = 0; b < buckets; b++) {
+            sizeStart[maxSize - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+        }
+        for (int s = 0; s <= maxSize; s++) {
+            sizeStart[s + 1] += sizeStart[s];
+        }
+        int[] order = new int[buckets];
+        for (int b = 0; b < buckets; b++) {
+            order[sizeStart[maxSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+        }
+
+        boolean[] taken = new boolean[n];
+        int[] seeds = new int[buckets];
+        int[] slots = new int[maxSize];
+        for (int b : order) {
+            int from = bucketStart[b], size = bucketStart[b + 1] - from;
+            if (size == 0) {
+                break;
+            }
+            int seed = 0;
+            while (!tryPlace(grouped, from, size, seed, n, taken, slots)) {
+                if (++seed == MAX_SEED) {
+                    return null;
+                }
+            }
+            seeds[b] = seed;
+        }
+        return new PerfectHash(n, salt, seeds);
+    }
+
+    /**
+     * Takes the slots of a bucket's terms under <code>seed</code> if they
+     * are all free and different.
+     */
+    private static boolean tryPlace(long[] hashes, int from, int size, int seed, int n, boolean[] taken, int[] slots) {
+        for (int i = 0; i < size; i++) {
+            int slot = slot(hashes[from + i], seed, n);
+            if (taken[slot]) {
+                for (int j = 0; j < i; j++) {
+                    taken[slots[j]] = false;
+                }
+                return false;
+            }
+            taken[slot] = true;
+            slots[i] = slot;
+        }
+        return true;
+    }
+
+    /**
+     * Number of slots, which is the number of terms.
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * The hash of a term, from which its slot and fingerprint are computed.
+     */
+    public long hash(String term) {
+        return hash(term, salt);
+    }
+
+    /**
+     * The slot of a term with the given hash. For a term outside the set the
+     * slot is arbitrary, but its fingerprint will most likely differ from
+     * the one stored in the slot.
+     */
+    public int slot(long hash) {
+        return n == 0 ? -1 : slot(hash, seeds[bucket(hash, seeds.length)], n);
+    }
+
+    public static int fingerprint(long hash) {
+        return (int) hash;
+    }
+
+    private static long hash(String term, int salt) {
+        // FNV-1a over the chars, then the MurmurHash3 finalizer
+        long h = 0xCBF29CE484222325L ^ salt;
+        for (int i = 0; i < term.length(); i++) {
+            h = (h ^ term.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static int bucket(long hash, int buckets) {
+        return (int) ((hash >>> 33) % buckets);
+    }
+
+    private static int slot(long hash, int seed, int n) {
+        return (int) ((mix(hash + (seed + 1) * 0x9E3779B97F4A7C15L) >>> 1) % n);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Number of bytes written by <code>write</code>.
+     */
+    public long byteSize() {
+        return 20 + 4L * seeds.length;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(n);
+        out.writeInt(salt);
+        out.writeInt(seeds.length);
+        for (int seed : seeds) {
+            out.writeInt(seed);
+        }
+    }
+
+    /**
+     * Reads a perfect hash function written by <code>write</code> at
+     * <code>pos</code>.
+     */
+    public static PerfectHash read(MappedFile in, long pos) throws IOException {
+        if (in.size() < pos + 20 || in.getInt(pos) != MAGIC) {
+            throw new IOException("Not a dictionary file, the index has to be rebuilt.");
+        }
+        if (in.getInt(pos + 4) != VERSION) {
+            throw new IOException("Dictionary file has version " + in.getInt(pos + 4) + ", expected "
+                    + VERSION + "; the index has to be rebuilt.");
+        }
+        int n = in.getInt(pos + 8);
+        int salt = in.getInt(pos + 12);
+        int[] seeds = new int[in.getInt(pos + 16)];
+        for (int b = 0; b < seeds.length; b++) {
+            seeds[b] = in.getInt(pos + 20 + 4L * b);
+        }
+        return new PerfectHash(n, salt, seeds);
+    }
+}
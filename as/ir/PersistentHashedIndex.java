@@ -10,6 +10,8 @@ package ir;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 /*
@@ -17,11 +19,21 @@ import java.io.*;
  *
  *   Both the words (the dictionary) and the data (the postings list) are
  *   stored in RandomAccessFiles that permit fast (almost constant-time)
- *   disk seeks.
+ *   disk seeks. The dictionary is a minimal perfect hash table with one
+ *   slot per term, so a lookup reads exactly one entry.
  *
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
  *   to disk.
+ *
+ *   If the postings and the forward index pairs in memory grow beyond
+ *   memoryBudget bytes, the postings are written to a run file sorted by
+ *   term id (SPIMI), and the forward index pairs and the names and lengths
+ *   of the documents since the last run are moved to files that are read
+ *   through memory mappings. At commit, the runs are merged term by term
+ *   into the index files. What stays in memory is a few ints per document
+ *   (see ForwardIndex and DocumentMap) and Index.dictionary, which grows
+ *   with the vocabulary.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -45,16 +57,54 @@ public class PersistentHashedIndex implements Index {
      */
     public static final String TERMS_FNAME = "terms";
 
+    /**
+     * The Bloom filter file name
+     */
+    public static final String BLOOM_FNAME = "bloom";
+
     /**
      * The doc info file name
      */
     public static final String DOCINFO_FNAME = "docInfo";
 
     /**
-     * The dictionary hash table on disk can fit this many entries.
+     * The file of the terms of Index.dictionary, in id order
      */
-    public static final long TABLESIZE = 611953L;
-    public static final int ENTRYSIZE = 20;
+    public static final String TERMIDS_FNAME = "termIDs";
+
+    /**
+     * The forward index file name
+     */
+    public static final String FORWARD_FNAME = "forward";
+
+    /**
+     * The k-gram index file name
+     */
+    public static final String KGRAMS_FNAME = "kgrams";
+
+    /**
+     * Size of a dictionary entry: fingerprint, size and pointer.
+     */
+    public static final int ENTRYSIZE = 16;
+    /**
+     * The directory of this index's files; INDEXDIR unless the index is a
+     * segment of a SegmentedIndex.
+     */
+    String indexDir;
+
+    /**
+     * The documents this index holds are those from firstDocID up to (but
+     * not including) endDocID; only their doc info is written.
+     */
+    int firstDocID = 0;
+    int endDocID = Integer.MAX_VALUE;
+
+    /**
+     * Whether the collection statistics are written with the index. A
+     * SegmentedIndex writes them for all its segments instead.
+     */
+    boolean writesStatistics = true;
+
     /**
      * The dictionary hash table is stored in this file.
      */
@@ -65,15 +115,117 @@ public class PersistentHashedIndex implements Index {
      */
     RandomAccessFile dataFile;
 
+    /**
+     * Memory mapping of the data file, which all lookups read from with
+     * absolute reads, so they do not share a file pointer. Writes still go
+     * through the RandomAccessFile.
+     */
+    volatile MappedFile dataMap;
+
+    /**
+     * The dictionary as lookups see it, read on the first lookup. Replaced
+     * as a whole, so a lookup running in another thread sees either all of
+     * it or nothing.
+     */
+    volatile Lookup lookup;
+
+    /**
+     * A memory mapping of the dictionary file, its perfect hash function,
+     * where its entries start, and the Bloom filter, which rejects most
+     * terms that are not in the dictionary before it is read.
+     */
+    static class Lookup {
+        final MappedFile dictionaryMap;
+        final PerfectHash perfectHash;
+        final long entriesStart;
+        final BloomFilter bloomFilter;
+
+        Lookup(MappedFile dictionaryMap, PerfectHash perfectHash, BloomFilter bloomFilter) {
+            this.dictionaryMap = dictionaryMap;
+            this.perfectHash = perfectHash;
+            this.entriesStart = perfectHash.byteSize();
+            this.bloomFilter = bloomFilter;
+        }
+    }
+
+    /**
+     * The buffer each searching thread reads encoded postings into, grown
+     * when a list does not fit.
+     */
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[1 << 12]);
+
+    /**
+     * Decoded postings of recently and frequently looked up terms.
+     */
+    PostingsCache cache = new PostingsCache(Runtime.getRuntime().maxMemory() / 8);
+
     /**
      * Pointer to the first free memory cell in the data file.
      */
     long free = 0L;
 
     /**
-     * The cache as a main-memory hash map.
+     * Size of the buffer the postings are written through at commit.
+     */
+    static final int DATA_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The postings appended since the data file was last written to; they
+     * belong at <code>free - dataBuffer.position()</code>. Off the heap, so
+     * the channel writes it without copying. Null when no commit is going
+     * on.
+     */
+    ByteBuffer dataBuffer;
+
+    /**
+     * The cache as a main-memory array indexed by term id.
+     */
+    CompressedPostings[] index = new CompressedPostings[1024];
+
+    /**
+     * Number of distinct terms in the cache.
+     */
+    int numberOfTerms = 0;
+
+    /**
+     * The terms inserted so far, also those already written to a run.
+     */
+    BitSet indexedTerms = new BitSet();
+
+    /**
+     * Approximate number of bytes used by the postings in memory.
+     */
+    long memoryUsed = 0L;
+
+    /**
+     * When the postings and the forward index pairs in memory use more
+     * bytes than this, they are written to files (see spillDocuments and
+     * writeRun).
+     */
+    long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * The run files written so far, in docID order.
+     */
+    ArrayList<File> runs = new ArrayList<File>();
+
+    /**
+     * The document being inserted. Runs are only written between documents.
+     */
+    int currentDocID = -1;
+
+    /**
+     * The names and lengths of the documents before this docID were
+     * written to the files in docInfoRuns.
      */
-    HashMap<String, PostingsList> index = new HashMap<String, PostingsList>();
+    int spilledDocID = 0;
+    ArrayList<File> docInfoRuns = new ArrayList<File>();
+
+    /**
+     * The names and lengths of the documents in this index's docID range,
+     * as read from the docInfo file, or null if there is none.
+     */
+    DocInfoStore docInfo;
 
 
     // ===================================================================
@@ -87,13 +239,13 @@ public class PersistentHashedIndex implements Index {
         //
         public int size;
         public long ptr;
-        public long hashSec;
+        public int fingerprint;
         //public String token;
 
-        public Entry(long ptr, int size, long hashSec) {
+        public Entry(long ptr, int size, int fingerprint) {
             this.size = size;
             this.ptr = ptr;
-            this.hashSec = hashSec;
+            this.fingerprint = fingerprint;
             // this.token = token;
         }
 
@@ -108,11 +260,17 @@ public class PersistentHashedIndex implements Index {
      * If these files don't exist, they will be created.
      */
     public PersistentHashedIndex() {
+        this(INDEXDIR);
+    }
+
+    /**
+     * Opens (or creates) the index files in the given directory.
+     */
+    public PersistentHashedIndex(String indexDir) {
+        this.indexDir = indexDir;
         try {
-            dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw");
-            dictionaryFile.seek(TABLESIZE*ENTRYSIZE+1000);
-            dictionaryFile.writeInt(1);
-            dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw");
+            dictionaryFile = new RandomAccessFile(indexDir + "/" + DICTIONARY_FNAME, "rw");
+            dataFile = new RandomAccessFile(indexDir + "/" + DATA_FNAME, "rw");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -123,88 +281,150 @@ public class PersistentHashedIndex implements Index {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        readStatistics(indexDir);
     }
 
     /**
-     * Writes data to the data file at a specified place.
-     *
-     * @return The number of bytes written.
+     * Writes Index.dictionary and Index.forwardIndex, which hold the term
+     * and document frequencies, to the directory.
      */
-    int writeData(String dataString, long ptr) {
+    static void writeStatistics(String dir) {
         try {
-            dataFile.seek(ptr);
-          // byte[] token = tokenString.getBytes();
-            byte[] data = dataString.getBytes() ;
-           // dataFile.write(token);
-            dataFile.write(data);
-            return data.length;
+            dictionary.write(new File(dir + "/" + TERMIDS_FNAME));
+            forwardIndex.write(new File(dir + "/" + FORWARD_FNAME));
         } catch (IOException e) {
             e.printStackTrace();
-            return -1;
         }
     }
 
-
     /**
-     * Reads data from the data file
+     * Reads Index.dictionary and Index.forwardIndex from the directory, if
+     * they were written there.
      */
-    String readData(long ptr, int size) {
+    static void readStatistics(String dir) {
+        File terms = new File(dir + "/" + TERMIDS_FNAME);
+        File forward = new File(dir + "/" + FORWARD_FNAME);
+        if (!terms.exists() || !forward.exists()) {
+            return;
+        }
         try {
-            dataFile.seek(ptr);
-            byte[] data = new byte[size];
-            dataFile.readFully(data);
-            return new String(data);
+            dictionary.read(terms);
+            forwardIndex.read(forward);
         } catch (IOException e) {
             e.printStackTrace();
-            return null;
         }
     }
 
+    /**
+     * Appends data to the data file, through the data buffer.
+     *
+     * @return The number of bytes written.
+     */
+    int appendData(byte[] data) throws IOException {
+        if (dataBuffer.remaining() < data.length) {
+            flushData();
+        }
+        if (data.length > dataBuffer.capacity()) {
+            writeFully(dataFile.getChannel(), ByteBuffer.wrap(data), free);
+        } else {
+            dataBuffer.put(data);
+        }
+        return data.length;
+    }
 
-    // ==================================================================
-    //
-    //  Reading and writing to the dictionary file.
 
-    /*
-     *  Writes an entry to the dictionary hash table file.
-     *
-     *  @param entry The key of this entry is assumed to have a fixed length
-     *  @param ptr   The place in the dictionary file to store the entry
+    /**
+     * Writes the contents of the data buffer to the data file.
+     */
+    void flushData() throws IOException {
+        dataBuffer.flip();
+        writeFully(dataFile.getChannel(), dataBuffer, free - dataBuffer.limit());
+        dataBuffer.clear();
+    }
+
+
+    /**
+     * Writes all of a buffer to a channel, starting at <code>pos</code>.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+    }
+
+
+    /**
+     * Reads data from the data file
      */
-    void writeEntry(Entry entry, long ptr) {
-        
+    byte[] readData(long ptr, int size) {
         try {
-            dictionaryFile.seek(ptr);
-            //dictionaryFile.writeBytes(entry.token);
-            dictionaryFile.writeLong(entry.hashSec);
-            dictionaryFile.writeLong(entry.ptr);
-            dictionaryFile.writeInt(entry.size);
+            byte[] data = new byte[size];
+            mapData(ptr + size).get(ptr, data, 0, size);
+            return data;
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
+    }
+
 
+    /**
+     * Returns a mapping of the data file that covers at least the first
+     * <code>end</code> bytes, mapping the file again if it has grown.
+     */
+    MappedFile mapData(long end) throws IOException {
+        MappedFile map = dataMap;
+        if (map != null && map.size() >= end) {
+            return map;
+        }
+        synchronized (this) {
+            if (dataMap == null || dataMap.size() < end) {
+                dataMap = new MappedFile(dataFile.getChannel(), dataFile.length());
+            }
+            return dataMap;
+        }
     }
 
+
+    // ==================================================================
+    //
+    //  Reading and writing to the dictionary file.
+
     /**
      * Reads an entry from the dictionary file.
      *
+     * @param map The mapping of the dictionary file.
      * @param ptr The place in the dictionary file where to start reading.
      */
-    Entry readEntry(long ptr) {
-        
-        try {
-            dictionaryFile.seek(ptr);
+    Entry readEntry(MappedFile map, long ptr) {
+        int fingerprint = map.getInt(ptr);
+        int size = map.getInt(ptr+4);
+        long pointer = map.getLong(ptr+8);
+        return new Entry(pointer, size, fingerprint);
+    }
 
-            long hashSec = dictionaryFile.readLong();
-            dictionaryFile.seek(ptr+8);
-            long pointer = dictionaryFile.readLong();
-            dictionaryFile.seek(ptr+16);
-            int size = dictionaryFile.readInt();
-            Entry entry = new Entry(pointer, size, hashSec);
-            return entry;
 
+    /**
+     * Maps the dictionary file and reads its perfect hash function.
+     *
+     * @return null if there is no valid index on disk.
+     */
+    synchronized Lookup openDictionary() {
+        if (lookup != null) {
+            return lookup;
+        }
+        try {
+            MappedFile data = mapData(PostingsCodec.HEADER_SIZE);
+            if (data.size() < PostingsCodec.HEADER_SIZE) {
+                throw new IOException("There is no index in " + indexDir + ".");
+            }
+            PostingsCodec.checkHeader(data.getInt(0), data.getInt(4));
+            MappedFile dictionaryMap = new MappedFile(dictionaryFile.getChannel(), dictionaryFile.length());
+            lookup = new Lookup(dictionaryMap, PerfectHash.read(dictionaryMap, 0),
+                    BloomFilter.read(new File(indexDir + "/" + BLOOM_FNAME)));
+            return lookup;
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println(e.getMessage());
             return null;
         }
     }
@@ -213,191 +433,524 @@ public class PersistentHashedIndex implements Index {
     // ==================================================================
 
     /**
-     * Writes the document names and document lengths to file.
-     *
-     * @throws IOException { exception_description }
+     * Writes the names and lengths of the documents in this index's docID
+     * range to the docInfo file, and reads them from there from now on.
+     */
+    void writeDocInfo() throws IOException {
+        writeDocInfo(null);
+    }
+
+    /**
+     * Writes the names and lengths that <code>source</code> has for the
+     * documents in this index's docID range (those in Index.docNames and
+     * Index.docLengths if it is null) to the docInfo file, and reads them
+     * from there from now on. The file is written under another name and
+     * then renamed, since the names may be read from the old file while the
+     * new one is written.
      */
-    private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream(INDEXDIR + "/docInfo");
-        for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
+    void writeDocInfo(DocInfoStore.Source source) throws IOException {
+        File temp = new File(indexDir + "/" + DOCINFO_FNAME + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout))) {
+            if (source == null) {
+                DocInfoStore.write(out, firstDocID, endDocID);
+            } else {
+                DocInfoStore.write(out, firstDocID, endDocID, source);
+            }
+            out.flush();
+            fout.getChannel().force(false);
+        }
+        if (!temp.renameTo(new File(indexDir + "/" + DOCINFO_FNAME))) {
+            throw new IOException("Could not replace " + indexDir + "/" + DOCINFO_FNAME);
+        }
+        readDocInfo();
+        // the new store replaces the stores of the runs
+        for (File file : docInfoRuns) {
+            file.delete();
         }
-        fout.close();
+        docInfoRuns.clear();
+        spilledDocID = 0;
     }
 
 
     /**
-     * Reads the document names and document lengths from file, and
-     * put them in the appropriate data structures.
-     *
-     * @throws IOException { exception_description }
+     * Maps the docInfo file, so that the document names and lengths are
+     * read from it when they are asked for.
      */
     private void readDocInfo() throws IOException {
-        File file = new File(INDEXDIR + "/docInfo");
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(";");
-                docNames.put(Integer.valueOf(data[0]), data[1]);
-                docLengths.put(Integer.valueOf(data[0]), Integer.valueOf(data[2]));
-            }
+        File file = new File(indexDir + "/" + DOCINFO_FNAME);
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
         }
-        freader.close();
+        docInfo = new DocInfoStore(file);
+        docNames.attach(docInfo);
+        docLengths.attach(docInfo);
     }
 
 
     /**
      * Write the index to files.
+     * <p>
+     * Every file of the commit (data, dictionary, Bloom filter, terms, doc
+     * info, and the term ids and forward index of writeStatistics) is forced
+     * to disk before it is used, so when this returns the index survives a
+     * crash. That is one fsync per file: the files cannot share one. The
+     * directory is not synced, so a crash may still undo the renaming of a
+     * file written under a temporary name, leaving the old file.
      */
     
     public void writeIndex() {
-        int collisions = 0;
         try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
+            // Spill the last postings before the data file is emptied, so a
+            // failed run leaves the old index in place
+            if (!runs.isEmpty()) {
+                writeRun();
+            }
+            beginData();
 
-            // Write the dictionary and the postings list
-            long max_val =0;
-            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
-                
-                long hash = stringHash(entry.getKey());
-                long hashSec = stringHash2(entry.getKey());
-                long h2=0;
-                int sq = 1;
-                
-                if (hash >= TABLESIZE|hash <0) {
-                        hash = 0L;
+            // Write the postings lists, then the dictionary
+            if (runs.isEmpty()) {
+                for (int termID = 0; termID < index.length; termID++) {
+                    if (index[termID] == null) {
+                        continue;
+                    }
+                    writeTerm(Index.dictionary.getTerm(termID), index[termID]);
                 }
-                while (!iCollision(hash,h2)) {
-                    if (hash >= TABLESIZE|hash<0) {
-                        hash = 0L;
+            } else {
+                PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+                for (int i = 0; i < runs.size(); i++) {
+                    RunReader reader = new RunReader(runs.get(i), i);
+                    if (reader.next()) {
+                        queue.add(reader);
                     }
-                    hash = hash+ (sq^2);
-                    sq++;
-                    collisions++;
                 }
-                if(sq > max_val){
-                    max_val = sq;
-                  }
-                
-
-                int pl_size = writeData(entry.getValue().toStr(), free);          
-                Entry entry_ = new Entry(free, pl_size,hashSec);
-                writeEntry(entry_, hash*ENTRYSIZE);
-                free = free + pl_size ;
-
-                //test 
-                // if(entry.getKey().equals("they")){
-                //     System.err.println(entry.getKey());
-                //     System.err.println(entry.getValue().toStr()); 
-                // }     
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    int termID = reader.termID;
+                    CompressedPostings postings = reader.postings;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                    // the same term in later runs has larger docIDs
+                    while (!queue.isEmpty() && queue.peek().termID == termID) {
+                        reader = queue.poll();
+                        postings.append(reader.postings);
+                        if (reader.next()) {
+                            queue.add(reader);
+                        }
+                    }
+                    writeTerm(Index.dictionary.getTerm(termID), postings);
+                }
+                for (File run : runs) {
+                    run.delete();
+                }
+                System.err.print("merged " + runs.size() + " runs...");
+                runs.clear();
+            }
+            writeDictionary();
+            // The doc info last, so that it is not replaced if the
+            // postings could not be written
+            writeDocInfo();
+            if (writesStatistics) {
+                writeStatistics(indexDir);
             }
-            System.err.println(max_val);   
         } catch (IOException e) {
             e.printStackTrace();
         }
-        System.err.println(collisions + " collisions.");
     }
 
-    //Hash Function 1
-    public static long stringHash(String term) {
-        long hash = 7;
-        for (int i = 0; i < term.length(); i++) {
-            hash = (33 * hash + term.charAt(i)) % TABLESIZE ;
+    /**
+     * The terms written to the data file by writeTerm, with the place and
+     * size of their postings, until the dictionary is written.
+     */
+    String[] writtenTermNames = new String[1024];
+    long[] ptrs = new long[1024];
+    int[] sizes = new int[1024];
+    int writtenTerms = 0;
+
+
+    /**
+     * Empties the data file and starts it with its header; writeTerm then
+     * appends the postings lists, which reach the file in large sequential
+     * writes.
+     */
+    void beginData() throws IOException {
+        dataMap = null;
+        dataFile.setLength(0);
+        dataBuffer = ByteBuffer.allocateDirect(DATA_BUFFER_SIZE);
+        dataBuffer.putInt(PostingsCodec.MAGIC).putInt(PostingsCodec.VERSION);
+        free = PostingsCodec.HEADER_SIZE;
+        writtenTerms = 0;
+    }
+
+
+    /**
+     * Writes the postings of a term to the data file and remembers where
+     * they are for the dictionary.
+     */
+    void writeTerm(String term, CompressedPostings postings) throws IOException {
+        writeRecord(term, postings.encode());
+    }
+
+
+    /**
+     * Writes an encoded postings list (see PostingsCodec) of a term to the
+     * data file.
+     */
+    void writeRecord(String term, byte[] record) throws IOException {
+        int pl_size = appendData(record);
+        if (writtenTerms == writtenTermNames.length) {
+            writtenTermNames = Arrays.copyOf(writtenTermNames, writtenTerms * 2);
+            ptrs = Arrays.copyOf(ptrs, writtenTerms * 2);
+            sizes = Arrays.copyOf(sizes, writtenTerms * 2);
+        }
+        writtenTermNames[writtenTerms] = term;
+        ptrs[writtenTerms] = free;
+        sizes[writtenTerms] = pl_size;
+        writtenTerms++;
+        free = free + pl_size ;
+    }
+
+
+    /**
+     * Builds a minimal perfect hash function over the written terms and
+     * writes it to the dictionary file, followed by one entry per slot.
+     * Also writes the Bloom filter and the sorted terms file.
+     *
+     * The dictionary table is put together in a buffer and written at
+     * once, and the data and dictionary files are forced to disk only
+     * here, at the end of the commit. (The Bloom filter and terms files are
+     * forced as they are written.)
+     */
+    void writeDictionary() throws IOException {
+        long startTime = System.currentTimeMillis();
+        flushData();
+        dataBuffer = null;
+        String[] terms = Arrays.copyOf(writtenTermNames, writtenTerms);
+        PerfectHash mph = PerfectHash.build(terms);
+        BloomFilter.build(terms).write(new File(indexDir + "/" + BLOOM_FNAME));
+        writeTerms(terms);
+
+        lookup = null;
+        if (cache != null) {
+            cache.clear();
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        mph.write(new DataOutputStream(header));
+        ByteBuffer table = ByteBuffer.allocateDirect(Math.toIntExact(mph.byteSize() + (long) writtenTerms * ENTRYSIZE));
+        table.put(header.toByteArray());
+        for (int i = 0; i < writtenTerms; i++) {
+            long hash = mph.hash(terms[i]);
+            int ptr = (int) mph.byteSize() + mph.slot(hash) * ENTRYSIZE;
+            table.putInt(ptr, PerfectHash.fingerprint(hash));
+            table.putInt(ptr + 4, sizes[i]);
+            table.putLong(ptr + 8, ptrs[i]);
         }
-        return hash;
-        
+        table.clear();
+        dictionaryFile.setLength(0);
+        writeFully(dictionaryFile.getChannel(), table, 0);
+        dataFile.getChannel().force(false);
+        dictionaryFile.getChannel().force(false);
+        System.err.print(writtenTerms + " terms in the dictionary (perfect hash built in "
+                + (System.currentTimeMillis() - startTime) + " ms)...");
+        writtenTerms = 0;
+        writtenTermNames = new String[1024];
+        ptrs = new long[1024];
+        sizes = new int[1024];
     }
 
-    //Hash Function 2
-    public static long stringHash2(String term){
-        int hash, i;
-        for (hash=term.length(), i=0; i<term.length(); ++i)
-            hash = (hash<<4)^(hash>>28)^term.charAt(i);
-        return (hash % TABLESIZE);
-        
+
+    /**
+     * Writes the terms file: the number of terms, and then every term in
+     * sorted order with the place and size of its postings in the data file.
+     */
+    void writeTerms(String[] terms) throws IOException {
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> terms[a].compareTo(terms[b]));
+        try (FileOutputStream fout = new FileOutputStream(indexDir + "/" + TERMS_FNAME);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16))) {
+            out.writeInt(terms.length);
+            for (int i : order) {
+                out.writeUTF(terms[i]);
+                out.writeLong(ptrs[i]);
+                out.writeInt(sizes[i]);
+            }
+            out.flush();
+            fout.getChannel().force(false);
+        }
     }
 
-    // if has hash collisions
-    boolean iCollision(long hash1,long hash2){
-        boolean result = false;
-        try {
-            if (hash1 >= TABLESIZE| hash1<0) {
-                result = false;
+
+    /**
+     * Reads the terms file of an index one term at a time, in sorted order.
+     */
+    static class TermsReader implements Closeable {
+        DataInputStream in;
+        int remaining;
+        String term;
+        long ptr;
+        int size;
+
+        TermsReader(String indexDir) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(indexDir + "/" + TERMS_FNAME), 1 << 16));
+            remaining = in.readInt();
+        }
+
+        /**
+         * Reads the next term, or returns false if there are no more.
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                term = null;
+                return false;
             }
-            else{
-                dictionaryFile.seek(hash1*ENTRYSIZE);
-                if(dictionaryFile.readLong() == hash2){
-                result = true;
-                }
-            }            
-         }catch (IOException e) {
-             e.printStackTrace();
+            remaining--;
+            term = in.readUTF();
+            ptr = in.readLong();
+            size = in.readInt();
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
         }
-        return result;
     }
 
-    // ==================================================================
+
+    /**
+     * Writes the postings in memory to a new run file, in term id order,
+     * and empties the memory. If the run cannot be written, the postings
+     * stay in memory and the partial file is deleted.
+     */
+    void writeRun() throws IOException {
+        File run = new File(indexDir + "/run" + runs.size());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (int termID = 0; termID < index.length; termID++) {
+                if (index[termID] != null) {
+                    out.writeInt(termID);
+                    index[termID].write(out);
+                }
+            }
+            out.writeInt(-1);
+        } catch (IOException e) {
+            run.delete();
+            throw e;
+        }
+        runs.add(run);
+        System.err.println("Wrote run " + runs.size() + " (" + memoryUsed / 1000000 + " MB of postings)");
+        Arrays.fill(index, null);
+        memoryUsed = 0L;
+    }
 
 
     /**
-     * Returns the postings for a specific term, or null
-     * if the term is not in the index.
+     * Moves the forward index pairs, and the names and lengths of the
+     * documents inserted since the last run, from memory to files (see
+     * ForwardIndex.spill and DocumentMap.attach). Runs between documents,
+     * when all documents so far have their names and lengths.
      */
-    public PostingsList getPostings(String token) {
+    void spillDocuments() throws IOException {
+        forwardIndex.spill(new File(indexDir + "/" + FORWARD_FNAME + ".spill"));
+        int from = Math.max(firstDocID, spilledDocID);
+        int to = Math.min(endDocID, docNames.endDocID());
+        if (to <= from) {
+            return;
+        }
+        File file = new File(indexDir + "/" + DOCINFO_FNAME + ".run" + docInfoRuns.size());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            DocInfoStore.write(out, from, to);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        DocInfoStore store = new DocInfoStore(file);
+        docNames.attach(store);
+        docLengths.attach(store);
+        docInfoRuns.add(file);
+        spilledDocID = to;
+    }
 
-        
-        long hash1 = stringHash(token);
-        long hash2 = stringHash2(token);
-        int sq = 1;
 
-        if (hash1 >= TABLESIZE | hash1<0) {
-            hash1 = 0L;
+    /**
+     * Reads the terms of a run file one at a time, for the k-way merge.
+     */
+    static class RunReader implements Comparable<RunReader> {
+        DataInputStream in;
+        int run;
+        int termID;
+        CompressedPostings postings;
+
+        RunReader(File file, int run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.run = run;
         }
-        while (!iCollision(hash1, hash2) && sq<100) {
-            if (hash1 >= TABLESIZE|hash1<0) {
-                hash1 = 0l;
+
+        /**
+         * Reads the next term, or closes the file and returns false at its end.
+         */
+        boolean next() throws IOException {
+            termID = in.readInt();
+            if (termID < 0) {
+                in.close();
+                postings = null;
+                return false;
             }
-            hash1 = hash1+(sq^2);
-            sq++;
+            postings = CompressedPostings.read(in);
+            return true;
         }
 
-        
-        Entry entry = readEntry(hash1*ENTRYSIZE);
-        //System.out.println(entry.ptr+","+entry.size);
-        String a = readData(entry.ptr, entry.size);
-        //System.out.println(a);
-        PostingsList pl = toPostingsList(a);
+        public int compareTo(RunReader other) {
+            return termID != other.termID ? Integer.compare(termID, other.termID) : Integer.compare(run, other.run);
+        }
+    }
+
+    // ==================================================================
+
+
+    /**
+     * Returns the postings for a specific term, or null
+     * if the term is not in the index. The list may be shared with
+     * the cache and must not be modified.
+     *
+     * Lookups keep no state in the index besides the cache, so any number
+     * of threads may search at the same time (but not while the index is
+     * being written).
+     */
+    public PostingsList getPostings(String token) {
+        Lookup l = lookup;
+        if (l == null && (l = openDictionary()) == null) {
+            return null;
+        }
+        if (!l.bloomFilter.mightContain(token)) {
+            return null;
+        }
+        PostingsList cached = cache == null ? null : cache.get(token);
+        if (cached != null) {
+            return cached;
+        }
+        Entry entry = findEntry(l, token);
+        if (entry == null) {
+            return null;
+        }
+        byte[] a = scratch.get();
+        if (a.length < entry.size) {
+            a = new byte[Math.max(entry.size, 2 * a.length)];
+            scratch.set(a);
+        }
+        try {
+            mapData(entry.ptr + entry.size).get(entry.ptr, a, 0, entry.size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        PostingsList pl = PostingsCodec.decode(a, 0);
+        if (cache != null) {
+            cache.put(token, pl);
+        }
         return pl;
 
     }
 
-    public PostingsList toPostingsList(String a){
-        PostingsList result = new PostingsList();
-        String[] postingsList = a.split("\n");
-      
-        for (int i=0;i<postingsList.length;i++){
-            String[] arry = postingsList[i].split(" ");
-            //System.out.println(arry[0]+","+arry[1]);
-            result.addElements(Integer.parseInt(arry[0]),Integer.parseInt(arry[1]),0.0);
+
+    /**
+     * Returns an iterator over the documents of a term, or null if the
+     * term is not in the index. Unless the postings are cached, the record
+     * is read from the mapping of the data file a block at a time, and only
+     * the blocks the iterator stops in are read and decoded. The cache is
+     * not filled, since that would decode the whole record.
+     */
+    public DocIterator getIterator(String token) {
+        Lookup l = lookup;
+        if (l == null && (l = openDictionary()) == null) {
+            return null;
+        }
+        if (!l.bloomFilter.mightContain(token)) {
+            return null;
+        }
+        PostingsList cached = cache == null ? null : cache.get(token);
+        if (cached != null) {
+            return new DocIterator.Term(cached);
+        }
+        Entry entry = findEntry(l, token);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return new DocIterator.Record(mapData(entry.ptr + entry.size), entry.ptr);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+     * Looks a term up in the dictionary; null if it is not there.
+     */
+    private Entry findEntry(Lookup l, String token) {
+        long hash = l.perfectHash.hash(token);
+        int slot = l.perfectHash.slot(hash);
+        if (slot < 0) {
+            return null;
+        }
+        Entry entry = readEntry(l.dictionaryMap, l.entriesStart + (long) slot * ENTRYSIZE);
+        if (entry.fingerprint != PerfectHash.fingerprint(hash)) {
+            return null;
         }
-        return result;
+        return entry;
     }
 
 
     /**
      * Inserts this token in the main-memory hashtable.
      */
-    public void insert(String token, int docID, int offset) {
-        if (!index.containsKey(token)) {
+    public void insert(int termID, int docID, int offset) {
+        if (docID != currentDocID) {
+            if (memoryUsed + forwardIndex.memorySize() >= memoryBudget) {
+                try {
+                    spillDocuments();
+                    writeRun();
+                } catch (IOException e) {
+                    // keep the postings in memory and try again after the next document
+                    e.printStackTrace();
+                }
+            }
+            currentDocID = docID;
+        }
+        if (termID >= index.length) {
+            index = Arrays.copyOf(index, Math.max(index.length * 2, termID + 1));
+        }
+        CompressedPostings postings = index[termID];
+        if (postings == null) {
             //if token didn't exit, insert new one
-            index.put(token, new PostingsList());
+            postings = new CompressedPostings();
+            index[termID] = postings;
+            if (!indexedTerms.get(termID)) {
+                indexedTerms.set(termID);
+                numberOfTerms++;
+            }
+            memoryUsed += 8 + postings.memorySize();
+        }
+        int before = postings.memorySize();
+        postings.add(docID, offset);
+        memoryUsed += postings.memorySize() - before;
+    }
 
+
+    /**
+     * Closes the index files. Lists already returned stay valid.
+     */
+    public void close() {
+        try {
+            dictionaryFile.close();
+            dataFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        index.get(token).addPersistentElements(docID, offset, 0.0);
     }
 
 
@@ -405,7 +958,7 @@ public class PersistentHashedIndex implements Index {
      * Write index to file after indexing is done.
      */
     public void cleanup() {
-        System.err.println(index.keySet().size() + " unique words");
+        System.err.println(numberOfTerms + " unique words");
         System.err.print("Writing index to disk...");
         writeIndex();
         System.err.println("done!");
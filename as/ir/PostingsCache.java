@@ -0,0 +1,256 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.HashMap;
+
+/**
+ * A cache of decoded postings lists, bounded by the number of bytes the
+ * lists take, with the W-TinyLFU eviction policy.
+ * <p>
+ * New lists enter a small LRU "window" (1% of the capacity). When the window
+ * is full, its least recently used list becomes a candidate for the main
+ * area, which is a segmented LRU: lists enter its "probation" segment and
+ * are promoted to the "protected" segment (80% of the main area) when they
+ * are used again. When the main area is full, the candidate is only
+ * admitted if it has been requested more often than the list that would be
+ * evicted for it. Request frequencies are estimated by a count-min sketch
+ * of 4-bit counters, which are halved every now and then so that old
+ * popularity fades.
+ * <p>
+ * So a term like "the", which most queries contain, stays cached, while a
+ * burst of rare terms cannot push it out. The cached lists are shared and
+ * must not be modified.
+ */
+public class PostingsCache {
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private static class Node {
+        final String term;
+        final PostingsList postings;
+        final long weight;
+        int segment;
+        Node prev, next;
+
+        Node(String term, PostingsList postings, long weight) {
+            this.term = term;
+            this.postings = postings;
+            this.weight = weight;
+        }
+    }
+
+    private final HashMap<String, Node> nodes = new HashMap<String, Node>();
+
+    /**
+     * Sentinels of the three LRU lists; <code>head.next</code> is the most
+     * recently used node.
+     */
+    private final Node[] heads = new Node[3];
+    private final long[] weights = new long[3];
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+
+    private final FrequencySketch sketch;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param capacity The maximal number of bytes of cached postings.
+     */
+    public PostingsCache(long capacity) {
+        this.capacity = capacity;
+        windowCapacity = Math.max(1, capacity / 100);
+        protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+        for (int i = 0; i < 3; i++) {
+            heads[i] = new Node(null, null, 0);
+            heads[i].prev = heads[i].next = heads[i];
+        }
+        // About one counter per kilobyte of capacity, which is more than
+        // the number of lists that fit
+        sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, capacity >> 10)));
+    }
+
+    /**
+     * Returns the cached postings of a term, or null (counting a miss) if
+     * they are not cached.
+     */
+    public synchronized PostingsList get(String term) {
+        sketch.increment(term);
+        Node node = nodes.get(term);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(node);
+        if (node.segment == PROBATION) {
+            link(node, PROTECTED);
+            while (weights[PROTECTED] > protectedCapacity) {
+                Node demoted = heads[PROTECTED].prev;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            link(node, node.segment);
+        }
+        return node.postings;
+    }
+
+    /**
+     * Caches the postings of a term, which were just fetched after a miss.
+     */
+    public synchronized void put(String term, PostingsList postings) {
+        long weight = postings.memorySize() + 2 * term.length() + 96;
+        if (weight > capacity || nodes.containsKey(term)) {
+            return;
+        }
+        Node node = new Node(term, postings, weight);
+        nodes.put(term, node);
+        link(node, WINDOW);
+        while (weights[WINDOW] > windowCapacity) {
+            Node candidate = heads[WINDOW].prev;
+            unlink(candidate);
+            link(candidate, PROBATION);
+            evict(candidate);
+        }
+    }
+
+    /**
+     * Evicts lists until the cache is within its capacity, choosing between
+     * the candidate just moved from the window and the least recently used
+     * list of the main area by their frequencies.
+     */
+    private void evict(Node candidate) {
+        while (weights[WINDOW] + weights[PROBATION] + weights[PROTECTED] > capacity) {
+            Node victim = heads[PROBATION].prev;
+            if (victim == heads[PROBATION] || victim == candidate) {
+                victim = heads[PROTECTED].prev != heads[PROTECTED] ? heads[PROTECTED].prev : candidate;
+            }
+            if (victim != candidate && sketch.frequency(candidate.term) > sketch.frequency(victim.term)) {
+                remove(victim);
+            } else {
+                remove(candidate);
+                return;
+            }
+        }
+    }
+
+    private void remove(Node node) {
+        unlink(node);
+        nodes.remove(node.term);
+        evictions++;
+    }
+
+    private void link(Node node, int segment) {
+        Node head = heads[segment];
+        node.segment = segment;
+        node.prev = head;
+        node.next = head.next;
+        head.next.prev = node;
+        head.next = node;
+        weights[segment] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        weights[node.segment] -= node.weight;
+    }
+
+    public synchronized void clear() {
+        nodes.clear();
+        for (int i = 0; i < 3; i++) {
+            heads[i].prev = heads[i].next = heads[i];
+            weights[i] = 0;
+        }
+    }
+
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    public synchronized long evictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Number of bytes of cached postings.
+     */
+    public synchronized long weightedSize() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    public synchronized String toString() {
+        long requests = hits + misses;
+        return String.format("%d lists, %.1f of %.1f MB, %d hits, %d misses (%.1f%% hits), %d evictions",
+                nodes.size(), weightedSize() / 1e6, capacity / 1e6, hits, misses,
+                requests == 0 ? 0.0 : 100.0 * hits / requests, evictions);
+    }
+
+
+    /**
+     * A count-min sketch with four rows of 4-bit counters. All counters are
+     * halved after every <code>10 * width</code> increments.
+     */
+    private static class FrequencySketch {
+        private final long[][] rows = new long[4][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int width) {
+            int counters = Integer.highestOneBit(width - 1) << 1;
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new long[counters / 16];
+            }
+            mask = counters - 1;
+            sampleSize = 10 * counters;
+        }
+
+        private int index(String term, int row) {
+            int h = term.hashCode() * (0x9E3779B9 + 2 * row);
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        int frequency(String term) {
+            int frequency = 15;
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(term, i);
+                frequency = Math.min(frequency, (int) (rows[i][index >>> 4] >>> ((index & 15) << 2)) & 15);
+            }
+            return frequency;
+        }
+
+        void increment(String term) {
+            boolean added = false;
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(term, i);
+                int shift = (index & 15) << 2;
+                if (((rows[i][index >>> 4] >>> shift) & 15) < 15) {
+                    rows[i][index >>> 4] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (long[] row : rows) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] = (row[j] >>> 1) & 0x7777777777777777L;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The binary format of the postings in the data file of a
+ * PersistentHashedIndex.
+ * <p>
+ * The data file starts with a header of two ints, <code>MAGIC</code> and
+ * <code>VERSION</code>. After it, every postings list is one record of
+ * variable-byte encoded ints: the number of documents, the total number of
+ * positions, the number of blocks, the skip table, and then for every
+ * document the gap to the previous docID, the term frequency and the
+ * positions as gaps to the previous position. This is the encoding of
+ * CompressedPostings, so lists are written without re-encoding them.
+ * <p>
+ * The documents are in blocks of <code>BLOCK</code>. The skip table has
+ * two numbers per block: the gap from the last docID of the previous block
+ * to its own last docID, and its length in bytes. A reader can so find the
+ * block holding a docID and decode only that block (see DocIterator.Record).
+ */
+public final class PostingsCodec {
+
+    /**
+     * "IRPL" in ASCII.
+     */
+    public static final int MAGIC = 0x4952504C;
+
+    /**
+     * Incremented whenever the format changes.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Number of bytes before the first record.
+     */
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * Number of documents per block of the skip table.
+     */
+    public static final int BLOCK = 128;
+
+    private PostingsCodec() {
+    }
+
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Reads a header and throws an IOException unless it is the header of
+     * this version of the format.
+     */
+    public static void checkHeader(DataInput in) throws IOException {
+        checkHeader(in.readInt(), in.readInt());
+    }
+
+    public static void checkHeader(int magic, int version) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not a postings data file, the index has to be rebuilt.");
+        }
+        if (version != VERSION) {
+            throw new IOException("Postings data file has version " + version + ", expected "
+                    + VERSION + "; the index has to be rebuilt.");
+        }
+    }
+
+    /**
+     * Decodes the record starting at <code>buf[pos]</code>.
+     */
+    public static PostingsList decode(byte[] buf, int pos) {
+        VByte.Reader in = new VByte.Reader(buf, pos);
+        int docCount = in.readInt();
+        int positionCount = in.readInt();
+        int blocks = in.readInt();
+        for (int b = 0; b < 2 * blocks; b++) {
+            in.readInt();
+        }
+        return decode(in, docCount, positionCount);
+    }
+
+    /**
+     * Encodes a record from the documents encoded in
+     * <code>data[0]</code> up to (but not including)
+     * <code>data[length]</code>, computing their skip table.
+     */
+    static byte[] encode(byte[] data, int length, int docCount, int positionCount) {
+        int blocks = (docCount + BLOCK - 1) / BLOCK;
+        byte[] table = new byte[2 * blocks * VByte.MAX_BYTES];
+        int tableLength = 0;
+        VByte.Reader in = new VByte.Reader(data, 0);
+        int docID = 0;
+        int lastDocID = 0;
+        int blockStart = 0;
+        for (int i = 0; i < docCount; i++) {
+            docID += in.readInt();
+            int tf = in.readInt();
+            for (int j = 0; j < tf; j++) {
+                in.readInt();
+            }
+            if (i % BLOCK == BLOCK - 1 || i == docCount - 1) {
+                tableLength = VByte.write(table, tableLength, docID - lastDocID);
+                tableLength = VByte.write(table, tableLength, in.position() - blockStart);
+                lastDocID = docID;
+                blockStart = in.position();
+            }
+        }
+        byte[] record = new byte[3 * VByte.MAX_BYTES + tableLength + length];
+        int pos = VByte.write(record, 0, docCount);
+        pos = VByte.write(record, pos, positionCount);
+        pos = VByte.write(record, pos, blocks);
+        System.arraycopy(table, 0, record, pos, tableLength);
+        pos += tableLength;
+        System.arraycopy(data, 0, record, pos, length);
+        pos += length;
+        return pos == record.length ? record : Arrays.copyOf(record, pos);
+    }
+
+    /**
+     * Decodes <code>docCount</code> documents with
+     * <code>positionCount</code> positions in total straight into the
+     * arrays of a new PostingsList.
+     */
+    static PostingsList decode(VByte.Reader in, int docCount, int positionCount) {
+        int[] docIDs = new int[Math.max(1, docCount)];
+        int[] posStart = new int[Math.max(1, docCount) + 1];
+        int[] positions = new int[Math.max(1, positionCount)];
+        int docID = 0;
+        int k = 0;
+        for (int i = 0; i < docCount; i++) {
+            docID += in.readInt();
+            docIDs[i] = docID;
+            int tf = in.readInt();
+            int position = 0;
+            for (int j = 0; j < tf; j++) {
+                position += in.readInt();
+                positions[k++] = position;
+            }
+            posStart[i + 1] = k;
+        }
+        return new PostingsList(docIDs, posStart, positions, docCount);
+    }
+}
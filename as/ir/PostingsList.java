@@ -14,76 +14,207 @@ import java.util.Collections;
 import java.util.Comparator;
 //import com.sun.tools.sjavac.comp.dependencies.PublicApiCollector;
 import java.util.HashMap;
+import java.util.function.IntBinaryOperator;
 
 public class PostingsList {
     /**
-     * The postings list
+     * The postings list, one posting per document, stored as parallel
+     * primitive arrays. Scores are allocated on the first call that sets a
+     * non-zero score.
      */
-    private ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
+    private int[] docIDs;
+    private double[] scores = null;
+
+    /**
+     * The positions of the term in each document. The positions of the ith
+     * posting are <code>positions[posStart[i]]</code> up to (but not
+     * including) <code>positions[posStart[i+1]]</code>, in increasing order.
+     */
+    private int[] posStart;
+    private int[] positions;
+
+    /**
+     * Number of postings (documents) in this list.
+     */
+    private int size = 0;
+
+    public PostingsList() {
+        this(8);
+    }
+
+    public PostingsList(int capacity) {
+        docIDs = new int[Math.max(1, capacity)];
+        posStart = new int[Math.max(1, capacity) + 1];
+        positions = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * Wraps arrays filled by a decoder; see the field comments for their
+     * layout.
+     */
+    PostingsList(int[] docIDs, int[] posStart, int[] positions, int size) {
+        this.docIDs = docIDs;
+        this.posStart = posStart;
+        this.positions = positions;
+        this.size = size;
+    }
 
     /**
      * Number of postings in this list.
      */
     public int size() {
-        return list.size();
+        return size;
     }
 
     /**
-     * Returns the ith posting.
+     * Approximate number of bytes of memory taken by this list.
+     */
+    public long memorySize() {
+        return 64 + 4L * (docIDs.length + posStart.length + positions.length)
+                + (scores == null ? 0 : 8L * scores.length);
+    }
+
+    /**
+     * Returns a copy of the ith posting.
      */
     public PostingsEntry get(int i) {
-        return list.get(i);
+        PostingsEntry entry = new PostingsEntry();
+        entry.docID = docIDs[i];
+        entry.offset = getOffset(i);
+        entry.score = getScore(i);
+        return entry;
+    }
+
+    public int getDocID(int i) {
+        return docIDs[i];
+    }
+
+    /**
+     * The docIDs of the postings, in increasing order, in the first
+     * <code>size()</code> elements of the list's own array. Must not be
+     * modified.
+     */
+    int[] docIDArray() {
+        return docIDs;
+    }
+
+    /**
+     * Returns the first position of the term in the ith document.
+     */
+    public int getOffset(int i) {
+        return getTf(i) > 0 ? positions[posStart[i]] : 0;
+    }
+
+    /**
+     * Returns the number of positions stored for the ith document.
+     */
+    public int getTf(int i) {
+        return posStart[i + 1] - posStart[i];
+    }
+
+    /**
+     * Returns the jth position of the term in the ith document.
+     */
+    public int getPosition(int i, int j) {
+        return positions[posStart[i] + j];
+    }
+
+    public double getScore(int i) {
+        return scores == null ? 0.0 : scores[i];
+    }
+
+    public void setScore(int i, double score) {
+        if (scores == null) {
+            if (score == 0.0) {
+                return;
+            }
+            scores = new double[docIDs.length];
+        }
+        scores[i] = score;
+    }
+
+    /**
+     * Appends all postings of <code>other</code>, whose docIDs must be larger
+     * than those in this list. Scores are not copied.
+     */
+    public void addAll(PostingsList other) {
+        int capacity = Math.max(docIDs.length, size + other.size);
+        int positionCount = posStart[size] + other.posStart[other.size];
+        if (capacity > docIDs.length) {
+            docIDs = Arrays.copyOf(docIDs, capacity);
+            posStart = Arrays.copyOf(posStart, capacity + 1);
+            if (scores != null) {
+                scores = Arrays.copyOf(scores, capacity);
+            }
+        }
+        if (positionCount > positions.length) {
+            positions = Arrays.copyOf(positions, positionCount);
+        }
+        System.arraycopy(other.docIDs, 0, docIDs, size, other.size);
+        System.arraycopy(other.positions, 0, positions, posStart[size], other.posStart[other.size]);
+        for (int i = 1; i <= other.size; i++) {
+            posStart[size + i] = posStart[size] + other.posStart[i];
+        }
+        size += other.size;
     }
 
     // clear all elements
     public void clear() {
-        list.clear();
+        size = 0;
+        scores = null;
     }
 
-    // set score
-
-    // insert elements into HashedIndex PostingsList
+    /**
+     * Adds an occurrence of the term. If <code>docID</code> is the document
+     * of the last posting, the offset is added to that posting's positions,
+     * otherwise a new posting is started.
+     */
     public void addElements(int docID, int offset, double score) {
-        PostingsEntry entry = new PostingsEntry();
-        entry.docID = docID;
-        entry.offset = offset;
-        entry.score = score;
-
-        list.add(entry);
+        if (size == 0 || docIDs[size - 1] != docID) {
+            if (size == docIDs.length) {
+                int capacity = docIDs.length * 2;
+                docIDs = Arrays.copyOf(docIDs, capacity);
+                posStart = Arrays.copyOf(posStart, capacity + 1);
+                if (scores != null) {
+                    scores = Arrays.copyOf(scores, capacity);
+                }
+            }
+            docIDs[size] = docID;
+            posStart[size + 1] = posStart[size];
+            size++;
+        }
+        int end = posStart[size];
+        if (end == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[end] = offset;
+        posStart[size] = end + 1;
+        if (scores != null || score != 0.0) {
+            setScore(size - 1, score);
+        }
     }
 
     // insert elements into PersistentHashedIndex PostingsList
     public void addPersistentElements(int docID, int offset, double score) {
-        PostingsEntry entry = new PostingsEntry();
-        entry.docID = docID;
-        entry.offset = offset;
-        entry.score = score;
-
-        list.add(entry);
+        addElements(docID, offset, score);
     }
 
+    /**
+     * One line per document: the docID followed by the positions.
+     */
     public String toStr() {
         StringBuilder a = new StringBuilder("");
-        for (int i = 0; i < list.size(); i++) {
-            // +" "+Double.toString(list.get(i).score)
-            a.append(Integer.toString(list.get(i).docID));
-            a.append(" ");
-            a.append(Integer.toString(list.get(i).offset));
+        for (int i = 0; i < size; i++) {
+            a.append(Integer.toString(docIDs[i]));
+            for (int k = posStart[i]; k < posStart[i + 1]; k++) {
+                a.append(" ");
+                a.append(Integer.toString(positions[k]));
+            }
             a.append("\n");
         }
         return a.toString();
     }
 
-    public void deduplication() {
-
-        for (int i = 0; i < list.size() - 1; i++) {
-            if (list.get(i).docID == list.get(i + 1).docID) {
-                list.remove(i);
-                i--;
-            }
-        }
-    }
-
     // public PostingsList intersect(PostingsList listIntersect) {
 
     // int m = 0;
@@ -110,32 +241,41 @@ public class PostingsList {
     // return _list;
     // }
 
-    public HashMap intersect(HashMap<Integer, ArrayList<Integer>> queriesList,
-            HashMap<Integer, ArrayList<Integer>> listIntersect) {
-
-        HashMap<Integer, ArrayList<Integer>> result = new HashMap<Integer, ArrayList<Integer>>();
-        if (listIntersect == null) {
-            for (Map.Entry<Integer, ArrayList<Integer>> entry : queriesList.entrySet()) {
-                result.put(entry.getKey(), entry.getValue());
-            }
-        } else {
-            if (queriesList.size() > listIntersect.size()) {
-                for (Map.Entry<Integer, ArrayList<Integer>> entry : listIntersect.entrySet()) {
-                    if (queriesList.containsKey(entry.getKey())) {
-                        result.put(entry.getKey(), entry.getValue());
-                    }
-                }
+    /**
+     * The index of the first of the first <code>size</code> docIDs in
+     * <code>ids</code> (which are sorted) that is at least
+     * <code>target</code>, looking from index <code>from</code> on; or
+     * <code>size</code> if there is none.
+     * <p>
+     * Gallops: the steps double until they pass the target, which is then
+     * binary searched, so the cost is logarithmic in the distance moved.
+     */
+    static int advance(int[] ids, int size, int from, int target) {
+        if (from >= size || ids[from] >= target) {
+            return from;
+        }
+        // ids[low] < target, and the first docID >= target is after low and
+        // at most at high
+        int low = from;
+        int step = 1;
+        int high = from + 1;
+        while (high < size && ids[high] < target) {
+            low = high;
+            step <<= 1;
+            high = low + step;
+        }
+        low++;
+        high = Math.min(high, size);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] < target) {
+                low = mid + 1;
             } else {
-                for (Map.Entry<Integer, ArrayList<Integer>> entry : queriesList.entrySet()) {
-                    if (listIntersect.containsKey(entry.getKey())) {
-                        result.put(entry.getKey(), entry.getValue());
-                    }
-                }
+                high = mid;
             }
         }
-        return result;
+        return low;
     }
-    
 
     // public PostingsList phaseIntersect(PostingsList listPhrase, int count) {
 
@@ -167,45 +307,6 @@ public class PostingsList {
     //     return result;
     // }
 
-    // phaseMapIntersect
-    public HashMap phaseMapIntersect(HashMap<Integer, ArrayList<Integer>> queriesList,
-            HashMap<Integer, ArrayList<Integer>> listMapPhrase, int count) {
-        HashMap<Integer, ArrayList<Integer>> result = new HashMap<Integer, ArrayList<Integer>>();
-
-        if (queriesList.size() < listMapPhrase.size()) {
-            for (Map.Entry<Integer, ArrayList<Integer>> entry : queriesList.entrySet()) {
-                if (listMapPhrase.containsKey(entry.getKey())) {
-                    ArrayList<Integer> _offset = listMapPhrase.get(entry.getKey());
-                    for (int n = 0; n < _offset.size(); n++) {
-                        if (entry.getValue().contains(_offset.get(n) - 1)) {
-                            if(!result.containsKey(entry.getKey())){
-                                result.put(entry.getKey(), new ArrayList<Integer>());
-                            }
-                            result.get(entry.getKey()).add(_offset.get(n));
-                        }
-                    }
-                    
-                }
-            }
-        } else {
-            for (Map.Entry<Integer, ArrayList<Integer>> entry : listMapPhrase.entrySet()) {
-                if (queriesList.containsKey(entry.getKey())) {
-                    ArrayList<Integer> _offset = queriesList.get(entry.getKey());
-                    for (int n = 0; n < _offset.size(); n++) {
-                        if (entry.getValue().contains(_offset.get(n) + 1)) {
-                            if(!result.containsKey(entry.getKey())){
-                                result.put(entry.getKey(), new ArrayList<Integer>());
-                            }
-                            result.get(entry.getKey()).add(_offset.get(n) + 1);
-                        }
-                    }
-                    
-                }
-            }
-        }
-        return result;
-    }
-
     // public PostingsList union(PostingsList listUnion) {
     //     PostingsList result = new PostingsList();
     //     Hashtable<Integer, ArrayList<Integer>> table = new Hashtable<Integer, ArrayList<Integer>>();
@@ -227,7 +328,7 @@ public class PostingsList {
     //     return result;
     // }
 
-    public HashMap union(HashMap<Integer, ArrayList<Integer>> queriesList,HashMap<Integer, ArrayList<Integer>> listMapIntersect){
+    public HashMap<Integer, ArrayList<Integer>> union(HashMap<Integer, ArrayList<Integer>> queriesList,HashMap<Integer, ArrayList<Integer>> listMapIntersect){
         HashMap<Integer, ArrayList<Integer>> result = new HashMap<Integer, ArrayList<Integer>>();
         if (queriesList.size() > listMapIntersect.size()) {
             for (Map.Entry<Integer, ArrayList<Integer>> entry : queriesList.entrySet()) {
@@ -252,29 +353,86 @@ public class PostingsList {
     }
 
 
-    public HashMap generateHashMap(HashMap<Integer, ArrayList<Integer>> listMapPhrase) {
+    public HashMap<Integer, ArrayList<Integer>> generateHashMap(HashMap<Integer, ArrayList<Integer>> listMapPhrase) {
         // HashMap<Integer, ArrayList<Integer>> listmap = new HashMap<Integer,
         // ArrayList<Integer>>();
-        for (int i = 0; i < list.size(); i++) {
-            if (!listMapPhrase.containsKey(list.get(i).docID)) {
-                listMapPhrase.put(list.get(i).docID, new ArrayList<Integer>());
+        for (int i = 0; i < size; i++) {
+            ArrayList<Integer> offsetList = listMapPhrase.get(docIDs[i]);
+            if (offsetList == null) {
+                offsetList = new ArrayList<Integer>(getTf(i));
+                listMapPhrase.put(docIDs[i], offsetList);
+            }
+            for (int k = posStart[i]; k < posStart[i + 1]; k++) {
+                offsetList.add(positions[k]);
             }
-            listMapPhrase.get(list.get(i).docID).add(list.get(i).offset);
         }
         return listMapPhrase;
     }
 
     public void sortScore() {
-        Collections.sort(list);
+        final double[] keys = scores;
+        if (keys == null) {
+            return;
+        }
+        // descending by score, ties keep their order
+        sort((a, b) -> Double.compare(keys[b], keys[a]));
     }
 
     public void sortDocId() {
-        Collections.sort(list, new Comparator<PostingsEntry>() {
-            @Override
-            public int compare(PostingsEntry o1, PostingsEntry o2) {
-                return o1.docID - o2.docID;
+        sort((a, b) -> Integer.compare(docIDs[a], docIDs[b]));
+    }
+
+    /**
+     * Stable sort of the postings, comparing them by their indices.
+     */
+    private void sort(IntBinaryOperator comparator) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size, comparator);
+
+        int[] sortedDocIDs = new int[docIDs.length];
+        int[] sortedPosStart = new int[posStart.length];
+        int[] sortedPositions = new int[positions.length];
+        double[] sortedScores = scores == null ? null : new double[scores.length];
+        for (int i = 0; i < size; i++) {
+            int j = order[i];
+            sortedDocIDs[i] = docIDs[j];
+            int tf = getTf(j);
+            System.arraycopy(positions, posStart[j], sortedPositions, sortedPosStart[i], tf);
+            sortedPosStart[i + 1] = sortedPosStart[i] + tf;
+            if (scores != null) {
+                sortedScores[i] = scores[j];
             }
-        });
+        }
+        docIDs = sortedDocIDs;
+        posStart = sortedPosStart;
+        positions = sortedPositions;
+        scores = sortedScores;
+    }
+
+    private static void mergeSort(int[] a, int[] tmp, int from, int to, IntBinaryOperator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, comparator);
+        mergeSort(a, tmp, mid, to, comparator);
+        if (comparator.applyAsInt(a[mid - 1], a[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            a[k++] = comparator.applyAsInt(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+        }
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
     }
 
 }
@@ -137,17 +137,18 @@ public class Query {
         int topNum = 10; // Only pick from top 10 results of tf_idf ranking
         for (int i = 0; i < topNum; i++) {
             if (docIsRelevant[i]) {
-                int docID = results.get(i).docID;
-                HashMap<String, Integer> doc_tfMap = engine.index.termFreq.get(docID);
-                int docLength = engine.index.docLengths.get(docID);
+                int docID = results.getDocID(i);
+                ForwardIndex forwardIndex = Index.forwardIndex;
+                int docLength = Index.docLengths.get(docID);
                 //System.err.println("docLength:" +docLength);
-                for (Map.Entry<String, Integer> tf : doc_tfMap.entrySet()) {
-                    //System.err.println("tf:"+tf.getValue());
-                    String term = tf.getKey();
+                for (long k = forwardIndex.start(docID); k < forwardIndex.end(docID); k++) {
+                    //System.err.println("tf:"+forwardIndex.tfAt(k));
+                    int termID = forwardIndex.termAt(k);
+                    String term = Index.dictionary.getTerm(termID);
                     double weight;
                     double idf;
-                    idf = Math.log10(engine.index.docNames.size()/engine.index.docFreq.get(term));
-                    weight = beta * (1.0 / numOfRelevantDoc) * (Double.valueOf(tf.getValue()) / Double.valueOf(docLength));
+                    idf = Math.log10(Index.docNames.size()/forwardIndex.docFreq(termID));
+                    weight = beta * (1.0 / numOfRelevantDoc) * (Double.valueOf(forwardIndex.tfAt(k)) / Double.valueOf(docLength));
                     //System.err.println("w:"+weight);
                     if (!expWeight.containsKey(term)) {
                         expWeight.put(term, weight);
@@ -0,0 +1,146 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Turns an intersection or phrase query into a tree of DocIterators.
+ * <p>
+ * Before any postings are read, every term is given an estimate of its
+ * number of documents: its document frequency in Index.forwardIndex, or for
+ * a wildcard, the sum over the terms it expands to. The postings are then
+ * fetched rarest first, so a query with a term that is not in the index
+ * stops before the lists of its common terms are read. The conjunction is
+ * driven by the shortest list, and each other list is either leapfrogged
+ * (advanced to the documents of the driver) or, when that is expected to
+ * cost more, read once into a bit set that the driver's documents are
+ * looked up in.
+ */
+public class QueryPlanner {
+
+    Index index;
+    KGramIndex kgIndex;
+
+    public QueryPlanner(Index index, KGramIndex kgIndex) {
+        this.index = index;
+        this.kgIndex = kgIndex;
+    }
+
+    /**
+     * A term of the query with the terms it expands to.
+     */
+    private static class Operand {
+        String[] terms;
+        boolean wildcard;
+        long estimate;
+        DocIterator iterator;
+    }
+
+    /**
+     * Returns the iterator over the documents matching a query of at least
+     * one term, or null if a term without wildcards is not in the index.
+     */
+    public DocIterator plan(Query query, QueryType queryType) {
+        int n = query.size();
+        Operand[] operands = new Operand[n];
+        for (int i = 0; i < n; i++) {
+            Operand operand = new Operand();
+            String token = query.queryterm.get(i).term;
+            operand.wildcard = token.contains("*");
+            if (operand.wildcard) {
+                Query expansion = kgIndex.getWordofWildcard(token);
+                operand.terms = new String[expansion.size()];
+                for (int j = 0; j < operand.terms.length; j++) {
+                    operand.terms[j] = expansion.queryterm.get(j).term;
+                }
+            } else {
+                operand.terms = new String[] { token };
+            }
+            for (String term : operand.terms) {
+                operand.estimate += Index.forwardIndex.docFreq(Index.dictionary.getID(term));
+            }
+            operands[i] = operand;
+        }
+
+        Operand[] byEstimate = operands.clone();
+        Arrays.sort(byEstimate, (a, b) -> Long.compare(a.estimate, b.estimate));
+        for (Operand operand : byEstimate) {
+            operand.iterator = fetch(operand);
+            if (operand.iterator == null) {
+                return null;
+            }
+            if (operand.iterator.cost() == 0) {
+                return operand.iterator;
+            }
+        }
+
+        // the estimates may be off (deleted documents, or no statistics), so
+        // order by the lengths of the fetched lists
+        DocIterator[] terms = new DocIterator[n];
+        Operand[] order = operands.clone();
+        Arrays.sort(order, (a, b) -> Long.compare(a.iterator.cost(), b.iterator.cost()));
+        DocIterator[] children = new DocIterator[n];
+        for (int i = 0; i < n; i++) {
+            terms[i] = operands[i].iterator;
+            children[i] = order[i].iterator;
+        }
+        if (queryType == QueryType.PHRASE_QUERY) {
+            return n == 1 ? terms[0] : new DocIterator.Phrase(terms, children);
+        }
+        long driver = children[0].cost();
+        for (int i = 1; i < n; i++) {
+            if (bitSetCost(driver, children[i].cost()) < leapfrogCost(driver, children[i].cost(), order[i].terms.length)) {
+                children[i] = new DocIterator.Bits(children[i]);
+            }
+        }
+        return n == 1 ? children[0] : new DocIterator.And(children);
+    }
+
+    /**
+     * Fetches the postings of an operand; null if it is a term without
+     * wildcards that is not in the index.
+     */
+    private DocIterator fetch(Operand operand) {
+        ArrayList<DocIterator> lists = new ArrayList<DocIterator>();
+        for (String term : operand.terms) {
+            DocIterator postings = index.getIterator(term);
+            if (postings != null) {
+                lists.add(postings);
+            } else if (!operand.wildcard) {
+                return null;
+            }
+        }
+        if (lists.isEmpty()) {
+            return new DocIterator.Empty();
+        }
+        return lists.size() == 1 ? lists.get(0) : new DocIterator.Or(lists.toArray(new DocIterator[lists.size()]));
+    }
+
+    /**
+     * Expected number of steps to advance a list of <code>cost</code>
+     * documents, made of <code>lists</code> postings lists, to each of the
+     * <code>driver</code> documents of the driving list: a galloping search
+     * over the gap to the next one, in every list.
+     */
+    static double leapfrogCost(long driver, long cost, int lists) {
+        return (double) driver * lists * (1 + log2(1 + (double) cost / (driver * lists)));
+    }
+
+    /**
+     * Expected number of steps to read a list of <code>cost</code>
+     * documents into a bit set and look the <code>driver</code> documents
+     * up in it.
+     */
+    static double bitSetCost(long driver, long cost) {
+        return cost + driver;
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+}
@@ -98,6 +98,7 @@ public class SearchGUI extends JFrame {
         menuBar.add(fileMenu);
         menuBar.add(optionsMenu);
         menuBar.add(rankingMenu);
+        fileMenu.add(saveItem);
         fileMenu.add(quitItem);
         optionsMenu.add(intersectionItem);
         optionsMenu.add(phraseItem);
@@ -155,12 +156,15 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback(results, relevant, engine);
                 }
-                // Search and print results. Access to the index is synchronized since
+                // Search and print results. Searches hold the read lock since
                 // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // (this might corrupt the index); other searches may run alongside.
                 long startTime = System.currentTimeMillis();
-                synchronized (engine.indexLock) {
+                engine.indexLock.readLock().lock();
+                try {
                     results = engine.searcher.search(query, queryType, rankingType);
+                } finally {
+                    engine.indexLock.readLock().unlock();
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
@@ -202,6 +206,15 @@ public class SearchGUI extends JFrame {
         };
         quitItem.addActionListener(quit);
 
+        Action saveAndQuit = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                displayInfoText("Saving the index, please wait...");
+                engine.saveSnapshot();
+                System.exit(0);
+            }
+        };
+        saveItem.addActionListener(saveAndQuit);
+
         Action setIntersectionQuery = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
                 queryType = QueryType.INTERSECTION_QUERY;
@@ -280,9 +293,9 @@ public class SearchGUI extends JFrame {
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for (i = 0; i < results.size() && i < maxResultsToDisplay; i++) {
-            String description = i + ". " + displayableFileName(engine.index.docNames.get(results.get(i).docID));
+            String description = i + ". " + displayableFileName(engine.index.docNames.get(results.getDocID(i)));
             if (queryType == QueryType.RANKED_QUERY) {
-                description += "   " + String.format("%.5f", results.get(i).score);
+                description += "   " + String.format("%.5f", results.getScore(i));
             }
             box[i] = new JCheckBox();
             box[i].setSelected(false);
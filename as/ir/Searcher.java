@@ -28,12 +28,18 @@ public class Searcher {
      */
     KGramIndex kgIndex;
 
+    /**
+     * Plans the evaluation of intersection and phrase queries.
+     */
+    QueryPlanner planner;
+
     /**
      * Constructor
      */
     public Searcher(Index index, KGramIndex kgIndex) {
         this.index = index;
         this.kgIndex = kgIndex;
+        this.planner = new QueryPlanner(index, kgIndex);
     }
 
     int MAX_NUMBER_OF_DOCS = 2000000;
@@ -47,78 +53,36 @@ public class Searcher {
     public PostingsList search(Query query, QueryType queryType, RankingType rankingType) {
         PostingsList result = new PostingsList();
 
-        if (query.size() != 0) {
-            for (int i = 0; i < query.size(); i++) {
-                String token = query.queryterm.get(i).term;
-                if (index.getPostings(token) == null && !token.contains("*")) {
-                    return null;
-                }
-            }
-        }
-
-        // INTERSECTION_QUERY
-        if (queryType == QueryType.INTERSECTION_QUERY) {
-            HashMap<Integer, ArrayList<Integer>> queriesList = new HashMap<Integer, ArrayList<Integer>>();
+        // INTERSECTION_QUERY and PHRASE_QUERY: a tree of iterators over the
+        // postings, which streams the matching documents into the result
+        if (queryType == QueryType.INTERSECTION_QUERY || queryType == QueryType.PHRASE_QUERY) {
             PostingsList list = new PostingsList();
             if (query.size() != 0) {
-                for (int i = 0; i < query.size(); i++) {
-
-                    String token = query.queryterm.get(i).term;
-                    // System.err.println(token);
-                    // System.err.println(index.getPostings(token));
-
-                    HashMap<Integer, ArrayList<Integer>> listMapIntersect = new HashMap<Integer, ArrayList<Integer>>();
-                    listMapIntersect = unionPostinglist(token);
-
-                    if (queriesList.size() == 0) {
-                        queriesList = listMapIntersect;
-                        if (queriesList.size() == 0) {
-                            queriesList = list.intersect(queriesList, listMapIntersect);
-                        }
-                    } else {
-                        queriesList = list.intersect(queriesList, listMapIntersect);
-                    }
-                }
-                for (Map.Entry<Integer, ArrayList<Integer>> entry : queriesList.entrySet()) {
-                    list.addElements(entry.getKey(), 1, 1.0);
+                DocIterator root = planner.plan(query, queryType);
+                if (root == null) {
+                    return null;
                 }
+                root.collect(docID -> list.addElements(docID, 1, 1.0));
             }
-            queriesList.clear();
-            list.deduplication();
-            result = list;
-
-        } else if (queryType == QueryType.PHRASE_QUERY) {
-            PostingsList list = new PostingsList();
-            int count = 0;
+            return list;
+        }
 
-            // rewrite phase_query
-            HashMap<Integer, ArrayList<Integer>> queriesList = new HashMap<Integer, ArrayList<Integer>>();
+        // fetch every term once, and give up if one is not in the index
+        HashMap<String, PostingsList> fetched = new HashMap<String, PostingsList>();
+        if (query.size() != 0) {
             for (int i = 0; i < query.size(); i++) {
                 String token = query.queryterm.get(i).term;
-                // PostingsList listPhrase = new PostingsList();
-                HashMap<Integer, ArrayList<Integer>> listMapPhrase = new HashMap<Integer, ArrayList<Integer>>();
-                listMapPhrase = unionPostinglist(token);
-
-                if (queriesList.size() == 0 && count == 0) {
-                    queriesList = listMapPhrase;
-                    // System.err.println("00:"+queriesList.size());
-                } else {
-                    count++;
-                    System.err.println(count);
-                    System.err.println("before" + queriesList.size());
-                    queriesList = list.phaseMapIntersect(queriesList, listMapPhrase, count);
-                    System.err.println("after" + queriesList.size());
+                if (!token.contains("*")) {
+                    PostingsList postings = index.getPostings(token);
+                    if (postings == null) {
+                        return null;
+                    }
+                    fetched.put(token, postings);
                 }
-
-                // listMapPhrase.clear();
             }
-            for (Map.Entry<Integer, ArrayList<Integer>> entry : queriesList.entrySet()) {
-                list.addElements(entry.getKey(), 1, 1.0);
-            }
-            queriesList.clear();
-            list.deduplication();
-            result = list;
-        } else if (queryType == QueryType.RANKED_QUERY) {
+        }
+
+        if (queryType == QueryType.RANKED_QUERY) {
             readPagerank("./PagerankScore.txt");
             PostingsList _list = new PostingsList();
 
@@ -129,7 +93,7 @@ public class Searcher {
             for (int i = 0; i < query.size(); i++) {
                 String token = query.queryterm.get(i).term;
                 HashMap<Integer, ArrayList<Integer>> listMapIntersect = new HashMap<Integer, ArrayList<Integer>>();
-                listMapIntersect = unionPostinglist(token);
+                listMapIntersect = unionPostinglist(token, fetched);
                 // System.err.println("listMapIntersect: " + listMapIntersect.size());
 
                 if (token.contains("*")) {
@@ -161,15 +125,14 @@ public class Searcher {
             if (rankingType == RankingType.PAGERANK) {
                 if (query.size() != 0) {
                     for (int i = 0; i < _list.size(); i++) {
-                        String filename = Index.docNames.get(_list.get(i).docID);
+                        String filename = Index.docNames.get(_list.getDocID(i));
                         filename = filename.substring(filename.lastIndexOf("/") + 1);
                         // System.err.println(filename);
                         double score = pageRank.get(filename);
-                        _list.get(i).setScore(score);
+                        _list.setScore(i, score);
                     }
                     _list.sortScore();
                 }
-                _list.deduplication();
                 result = _list;
             } else if (rankingType == RankingType.HITS) {
 
@@ -183,39 +146,42 @@ public class Searcher {
             // tf_idf and combination
             else {
 
+                ForwardIndex forwardIndex = Index.forwardIndex;
+                int[] termIDs = new int[query.size()];
+                for (int i = 0; i < query.size(); i++) {
+                    termIDs[i] = Index.dictionary.getID(query.queryterm.get(i).term);
+                }
                 for (Map.Entry<Integer, ArrayList<Integer>> entry : queriesList.entrySet()) {
-                    HashMap<String, Integer> termFreq = new HashMap<String, Integer>();
-                    termFreq = Index.termFreq.get(entry.getKey());
+                    int docID = entry.getKey();
                     Double score = 0.0;
                     for (int i = 0; i < query.size(); i++) {
-                        String token = query.queryterm.get(i).term;
-                        if (termFreq.containsKey(token)) {
-                            double idf = idf(token);
+                        int tf = forwardIndex.tf(docID, termIDs[i]);
+                        if (tf > 0) {
+                            double idf = idf(termIDs[i]);
                             idf = idf * query.queryterm.get(i).weight;
-                            double tf_idf = idf * termFreq.get(token) / Index.docLengths.get(entry.getKey());
+                            double tf_idf = idf * tf / Index.docLengths.get(docID);
                             score = score + tf_idf;
                         }
                     }
-                    _list.addElements(entry.getKey(), 1, score);
+                    _list.addElements(docID, 1, score);
                 }
                 _list.sortScore();
 
                 if (rankingType == RankingType.TF_IDF) {
                     // for (int i = 0; i < 50; i++) {
-                    //     String filename = Index.docNames.get(_list.get(i).docID);
+                    //     String filename = Index.docNames.get(_list.getDocID(i));
                     //     filename = filename.substring(filename.lastIndexOf("/") + 1);
                     //     System.err.println(filename);
                     // }
-                    _list.deduplication();
                     result = _list;
                 } else if (rankingType == RankingType.COMBINATION) {
                     if (query.size() != 0) {
                         for (int i = 0; i < _list.size(); i++) {
-                            String filename = Index.docNames.get(_list.get(i).docID);
+                            String filename = Index.docNames.get(_list.getDocID(i));
                             filename = filename.substring(filename.lastIndexOf("/") + 1);
                             // here
-                            double score = w1 * pageRank.get(filename) + (1 - w1) * (_list.get(i).score);
-                            _list.get(i).setScore(score);
+                            double score = w1 * pageRank.get(filename) + (1 - w1) * (_list.getScore(i));
+                            _list.setScore(i, score);
                         }
                         _list.sortScore();
                     }
@@ -229,23 +195,27 @@ public class Searcher {
     }
 
     public double idf(String token) {
+        return idf(Index.dictionary.getID(token));
+    }
+
+    double idf(int termID) {
         double idf;
-        int df = Index.docFreq.get(token);
+        int df = Index.forwardIndex.docFreq(termID);
         idf = Math.log10(Index.docLengths.size() / df);
         return idf;
     }
 
     public void tf_idf_score(Hashtable<Integer, HashMap<Integer, Double>> tf, PostingsList _list) {
         for (int i = 0; i < _list.size(); i++) {
-            // System.out.println("list:"+_list.get(i).docID);
+            // System.out.println("list:"+_list.getDocID(i));
             double score = 0.0;
-            HashMap<Integer, Double> _tf_idf = tf.get(_list.get(i).docID);
+            HashMap<Integer, Double> _tf_idf = tf.get(_list.getDocID(i));
             for (int n = 0; n < _tf_idf.size(); n++) {
-                score = score + _tf_idf.get(n) / Index.docLengths.get(_list.get(i).docID);
+                score = score + _tf_idf.get(n) / Index.docLengths.get(_list.getDocID(i));
 
             }
-            _list.get(i).setScore(score);
-            // System.err.println(_list.get(i).score);
+            _list.setScore(i, score);
+            // System.err.println(_list.getScore(i));
             //
         }
 
@@ -274,7 +244,15 @@ public class Searcher {
     // return result;
     // }
 
-    public HashMap unionPostinglist(String token) {
+    public HashMap<Integer, ArrayList<Integer>> unionPostinglist(String token) {
+        return unionPostinglist(token, new HashMap<String, PostingsList>());
+    }
+
+    /**
+     * Like unionPostinglist(token), but takes the postings of a term without
+     * wildcards from <code>fetched</code> if they are there.
+     */
+    HashMap<Integer, ArrayList<Integer>> unionPostinglist(String token, HashMap<String, PostingsList> fetched) {
         HashMap<Integer, ArrayList<Integer>> result = new HashMap<Integer, ArrayList<Integer>>();
         PostingsList listPhrase = new PostingsList();
         if (token.contains("*")) {
@@ -284,10 +262,12 @@ public class Searcher {
                 String term = _query.queryterm.get(j).term;
                 // System.err.println(term);
                 listPhrase = index.getPostings(term);
-                result = listPhrase.generateHashMap(result);
+                if (listPhrase != null) {
+                    result = listPhrase.generateHashMap(result);
+                }
             }
         } else {
-            listPhrase = index.getPostings(token);
+            listPhrase = fetched.containsKey(token) ? fetched.get(token) : index.getPostings(token);
             result = listPhrase.generateHashMap(result);
         }
         return result;
@@ -0,0 +1,607 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A persistent index made of immutable segments. Every indexing run writes
+ * its documents as a new segment, which is a PersistentHashedIndex in its
+ * own directory under INDEXDIR holding a consecutive range of docIDs. The
+ * live segments are listed, in docID order, in the <code>segments</code>
+ * file, which is replaced atomically whenever the list changes.
+ * <p>
+ * A lookup asks every segment for the term and concatenates the postings
+ * lists, which needs no merging since the docID ranges are ordered.
+ * <p>
+ * After each commit, a background thread compacts the segments with a
+ * tiered policy: a segment is in tier t if its data file is smaller than
+ * 4^(t+1) MB, and whenever <code>MERGE_FACTOR</code> neighbouring segments
+ * are in the same tier they are merged into one segment of the next tier.
+ * So every posting is rewritten only a logarithmic number of times, and
+ * adding documents costs time in proportion to the new documents.
+ * <p>
+ * The <code>manifest</code> file lists the indexed files (see
+ * DocumentManifest), so that an indexing run only indexes new and modified
+ * files. Documents of modified and deleted files are left out of the
+ * postings lists returned by lookups, and out of the segments merged
+ * afterwards.
+ */
+public class SegmentedIndex implements Index {
+
+    /**
+     * The file listing the live segments.
+     */
+    public static final String SEGMENTS_FNAME = "segments";
+
+    /**
+     * The file listing the indexed files.
+     */
+    public static final String MANIFEST_FNAME = "manifest";
+
+    /**
+     * Number of segments of a tier that are merged into one.
+     */
+    public static final int MERGE_FACTOR = 4;
+
+    private static final long TIER_BASE = 1 << 20;
+
+    /**
+     * A live segment.
+     */
+    static class Segment {
+        final String name;
+        final int firstDocID;
+        final int endDocID;
+        final PersistentHashedIndex index;
+
+        Segment(String name, int firstDocID, int endDocID, PersistentHashedIndex index) {
+            this.name = name;
+            this.firstDocID = firstDocID;
+            this.endDocID = endDocID;
+            this.index = index;
+        }
+
+        long size() {
+            try {
+                return index.dataFile.length();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        int tier() {
+            int tier = 0;
+            for (long size = size() / TIER_BASE; size >= 4; size /= 4) {
+                tier++;
+            }
+            return tier;
+        }
+    }
+
+    /**
+     * The live segments in docID order. The list is never modified, only
+     * replaced, so lookups can use it without locking.
+     */
+    private volatile List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Number used for the name of the next new segment.
+     */
+    private int nextSegment = 0;
+
+    /**
+     * The segment being built by the current indexing run, if any.
+     */
+    private PersistentHashedIndex building;
+    private String buildingName;
+    private int buildingFirstDocID;
+
+    /**
+     * The docID after the last one given out by the current indexing run.
+     */
+    private int buildingEndDocID = 0;
+
+    /**
+     * Postings merged over all segments for recently used terms. Cleared
+     * when a segment is added.
+     */
+    PostingsCache cache = new PostingsCache(Runtime.getRuntime().maxMemory() / 8);
+
+    /**
+     * The indexed files, and the deleted documents.
+     */
+    DocumentManifest manifest;
+
+    /**
+     * The deleted documents as of the last commit or merge, which lookups
+     * leave out.
+     */
+    private volatile BitSet deletedDocs;
+
+    /**
+     * Searches hold the read lock while they use the postings and iterators
+     * of the index (Engine passes its indexLock). The compactor takes the
+     * write lock to replace merged segments and close them, so no search
+     * reads a closed segment.
+     */
+    private final ReadWriteLock searchLock;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "index-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SegmentedIndex() {
+        this(new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Opens the live segments listed in INDEXDIR, and deletes directories of
+     * segments that are not listed (left by an interrupted merge).
+     */
+    public SegmentedIndex(ReadWriteLock searchLock) {
+        this.searchLock = searchLock;
+        File list = new File(PersistentHashedIndex.INDEXDIR + "/" + SEGMENTS_FNAME);
+        List<Segment> live = new ArrayList<Segment>();
+        HashSet<String> names = new HashSet<String>();
+        if (list.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(list))) {
+                nextSegment = Integer.parseInt(in.readLine().trim());
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] data = line.split(" ");
+                    live.add(open(data[0], Integer.parseInt(data[1]), Integer.parseInt(data[2])));
+                    names.add(data[0]);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        File[] dirs = new File(PersistentHashedIndex.INDEXDIR).listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory() && dir.getName().startsWith("seg-") && !names.contains(dir.getName())) {
+                    deleteSegment(dir);
+                }
+            }
+        }
+        segments = live;
+        PersistentHashedIndex.readStatistics(PersistentHashedIndex.INDEXDIR);
+        manifest = new DocumentManifest(new File(PersistentHashedIndex.INDEXDIR + "/" + MANIFEST_FNAME));
+        int unknown = manifest.deleteUnknown();
+        if (unknown > 0) {
+            System.err.println(unknown + " documents are not in the manifest; their files will be indexed again");
+        }
+        if (unknown > 0 || purgeMerged(live) > 0) {
+            manifest.save();
+        }
+        manifest.forgetDeleted();
+        deletedDocs = manifest.deletedDocs();
+        System.err.println(live.size() + " segments with " + nextDocID() + " documents, "
+                + deletedDocs.cardinality() + " of them deleted");
+    }
+
+    /**
+     * Purges the tombstones of documents that no live segment holds, since
+     * a merge dropped them after the manifest was last saved.
+     *
+     * @return The number of purged tombstones.
+     */
+    private int purgeMerged(List<Segment> live) {
+        BitSet deleted = manifest.deletedDocs();
+        BitSet gone = new BitSet();
+        int s = 0;
+        for (int docID = deleted.nextSetBit(0); docID >= 0; docID = deleted.nextSetBit(docID + 1)) {
+            while (s < live.size() && live.get(s).endDocID <= docID) {
+                s++;
+            }
+            DocInfoStore docInfo = s == live.size() ? null : live.get(s).index.docInfo;
+            if (docInfo == null || !docInfo.contains(docID)) {
+                gone.set(docID);
+            }
+        }
+        if (!gone.isEmpty()) {
+            manifest.purge(gone);
+        }
+        return gone.cardinality();
+    }
+
+    private Segment open(String name, int firstDocID, int endDocID) {
+        PersistentHashedIndex index = new PersistentHashedIndex(PersistentHashedIndex.INDEXDIR + "/" + name);
+        index.cache = null;
+        index.firstDocID = firstDocID;
+        index.endDocID = endDocID;
+        index.openDictionary();
+        return new Segment(name, firstDocID, endDocID, index);
+    }
+
+    /**
+     * The docID to give the first document of the next indexing run.
+     */
+    public int nextDocID() {
+        List<Segment> live = segments;
+        return live.isEmpty() ? 0 : live.get(live.size() - 1).endDocID;
+    }
+
+    /**
+     * Tells the index the docID after the last one the indexer gave out,
+     * which ends the range of the segment written by <code>cleanup</code>.
+     * Documents without tokens are never inserted, but have a docID.
+     */
+    public void setEndDocID(int endDocID) {
+        buildingEndDocID = endDocID;
+    }
+
+    /**
+     * Adds a token to the segment being built, which is created by the first
+     * insertion of an indexing run.
+     */
+    public void insert(int termID, int docID, int offset) {
+        if (building == null) {
+            synchronized (this) {
+                buildingName = "seg-" + nextSegment++;
+            }
+            String dir = PersistentHashedIndex.INDEXDIR + "/" + buildingName;
+            new File(dir).mkdirs();
+            building = new PersistentHashedIndex(dir);
+            building.writesStatistics = false;
+            buildingFirstDocID = nextDocID();
+            // the doc info spilled with a run must not cover older segments
+            building.firstDocID = buildingFirstDocID;
+        }
+        building.insert(termID, docID, offset);
+    }
+
+    /**
+     * Returns the postings of a term in all segments, or null if no segment
+     * contains it. The list may be shared with the cache and must not be
+     * modified.
+     */
+    public PostingsList getPostings(String token) {
+        PostingsList cached = cache.get(token);
+        if (cached != null) {
+            return cached;
+        }
+        // The segments do not cache, so their lists are new and can be
+        // appended to
+        PostingsList result = null;
+        for (Segment segment : segments) {
+            PostingsList postings = segment.index.getPostings(token);
+            if (postings == null) {
+                continue;
+            }
+            if (result == null) {
+                result = postings;
+            } else {
+                result.addAll(postings);
+            }
+        }
+        if (result != null) {
+            result = withoutDeleted(result, deletedDocs);
+        }
+        if (result != null) {
+            cache.put(token, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns an iterator over the documents of a term in all segments
+     * that are not deleted, or null if no segment contains the term. The
+     * segments' records are read a block at a time (see
+     * PersistentHashedIndex.getIterator), so their skip tables are used.
+     */
+    public DocIterator getIterator(String token) {
+        PostingsList cached = cache.get(token);
+        if (cached != null) {
+            return new DocIterator.Term(cached);
+        }
+        ArrayList<DocIterator> parts = new ArrayList<DocIterator>();
+        for (Segment segment : segments) {
+            DocIterator postings = segment.index.getIterator(token);
+            if (postings != null) {
+                parts.add(postings);
+            }
+        }
+        if (parts.isEmpty()) {
+            return null;
+        }
+        return new DocIterator.Concatenation(parts.toArray(new DocIterator[parts.size()]), deletedDocs);
+    }
+
+    /**
+     * Returns the postings of the documents that are not deleted, or null
+     * if there are none.
+     */
+    private static PostingsList withoutDeleted(PostingsList postings, BitSet deleted) {
+        int i = 0;
+        while (i < postings.size() && !deleted.get(postings.getDocID(i))) {
+            i++;
+        }
+        if (i == postings.size()) {
+            return postings;
+        }
+        PostingsList kept = new PostingsList(postings.size());
+        for (i = 0; i < postings.size(); i++) {
+            int docID = postings.getDocID(i);
+            if (!deleted.get(docID)) {
+                for (int j = 0; j < postings.getTf(i); j++) {
+                    kept.addElements(docID, postings.getPosition(i, j), 0.0);
+                }
+            }
+        }
+        return kept.size() == 0 ? null : kept;
+    }
+
+    /**
+     * Writes the segment built by this indexing run and makes it live, then
+     * starts a compaction in the background. Also makes the deletions of
+     * this run take effect.
+     */
+    public void cleanup() {
+        if (building == null) {
+            System.err.println("No documents indexed, no new segment.");
+            if (commitManifest()) {
+                PersistentHashedIndex.writeStatistics(PersistentHashedIndex.INDEXDIR);
+            }
+            return;
+        }
+        int endDocID = Math.max(buildingFirstDocID, buildingEndDocID);
+        building.firstDocID = buildingFirstDocID;
+        building.endDocID = endDocID;
+        building.cleanup();
+        building.openDictionary();
+        Segment segment = new Segment(buildingName, buildingFirstDocID, endDocID, building);
+        building = null;
+        synchronized (this) {
+            List<Segment> live = new ArrayList<Segment>(segments);
+            live.add(segment);
+            publish(live);
+        }
+        // The segments file is the commit point. If we stop before the
+        // manifest is saved, the constructor deletes the documents of the
+        // new segment that the manifest does not know, and the next run
+        // indexes their files again. (Saving the manifest first would lose
+        // the files instead.)
+        commitManifest();
+        PersistentHashedIndex.writeStatistics(PersistentHashedIndex.INDEXDIR);
+        compactor.execute(this::compact);
+    }
+
+    /**
+     * @return Whether the manifest changed.
+     */
+    private boolean commitManifest() {
+        boolean changed = manifest.save();
+        manifest.forgetDeleted();
+        synchronized (this) {
+            deletedDocs = manifest.deletedDocs();
+        }
+        cache.clear();
+        return changed;
+    }
+
+    /**
+     * Makes a new list of segments live, in memory and on disk.
+     */
+    private synchronized void publish(List<Segment> live) {
+        File list = new File(PersistentHashedIndex.INDEXDIR + "/" + SEGMENTS_FNAME);
+        File temp = new File(PersistentHashedIndex.INDEXDIR + "/" + SEGMENTS_FNAME + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(temp)) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(fout));
+            out.println(nextSegment);
+            for (Segment segment : live) {
+                out.println(segment.name + " " + segment.firstDocID + " " + segment.endDocID);
+            }
+            out.flush();
+            // the segments must not be named before they are on disk, which
+            // writeDictionary and writeDocInfo make sure of
+            fout.getChannel().force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!temp.renameTo(list)) {
+            System.err.println("Could not replace " + list);
+            return;
+        }
+        segments = Collections.unmodifiableList(live);
+        cache.clear();
+    }
+
+    /**
+     * Merges neighbouring segments of the same tier until there are fewer
+     * than MERGE_FACTOR of them in a row.
+     */
+    private void compact() {
+        while (true) {
+            List<Segment> live = segments;
+            int from = -1;
+            for (int i = 0; i + MERGE_FACTOR <= live.size() && from < 0; i++) {
+                int tier = live.get(i).tier();
+                int j = i + 1;
+                while (j < i + MERGE_FACTOR && live.get(j).tier() == tier) {
+                    j++;
+                }
+                if (j == i + MERGE_FACTOR) {
+                    from = i;
+                }
+            }
+            if (from < 0) {
+                return;
+            }
+            try {
+                merge(live.subList(from, from + MERGE_FACTOR));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges neighbouring segments into a new segment and replaces them
+     * with it. The postings and doc info of deleted documents are dropped.
+     */
+    private void merge(List<Segment> inputs) throws IOException {
+        long startTime = System.currentTimeMillis();
+        String name;
+        synchronized (this) {
+            name = "seg-" + nextSegment++;
+        }
+        String dir = PersistentHashedIndex.INDEXDIR + "/" + name;
+        new File(dir).mkdirs();
+        Segment first = inputs.get(0), last = inputs.get(inputs.size() - 1);
+        PersistentHashedIndex merged = new PersistentHashedIndex(dir);
+        merged.cache = null;
+        merged.firstDocID = first.firstDocID;
+        merged.endDocID = last.endDocID;
+
+        // The documents deleted by now are left out of the merged segment.
+        // Only the merge takes documents out of the deleted set, so they stay
+        // deleted while it runs.
+        BitSet deleted = deletedDocs;
+        BitSet purged = new BitSet();
+        for (int docID = deleted.nextSetBit(first.firstDocID); docID >= 0 && docID < last.endDocID; docID = deleted.nextSetBit(docID + 1)) {
+            purged.set(docID);
+        }
+        boolean[] purge = new boolean[inputs.size()];
+        for (int i = 0; i < purge.length; i++) {
+            int docID = purged.nextSetBit(inputs.get(i).firstDocID);
+            purge[i] = docID >= 0 && docID < inputs.get(i).endDocID;
+        }
+
+        // Merge the sorted terms files of the inputs; the postings of a term
+        // are appended in segment order, which is docID order
+        PersistentHashedIndex.TermsReader[] readers = new PersistentHashedIndex.TermsReader[inputs.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<Integer>((a, b) -> {
+            int c = readers[a].term.compareTo(readers[b].term);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        merged.beginData();
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new PersistentHashedIndex.TermsReader(inputs.get(i).index.indexDir);
+                if (readers[i].next()) {
+                    heads.add(i);
+                }
+            }
+            while (!heads.isEmpty()) {
+                int i = heads.poll();
+                String term = readers[i].term;
+                byte[] record = inputs.get(i).index.readData(readers[i].ptr, readers[i].size);
+                // a record without deleted documents is copied as it is
+                CompressedPostings postings = purge[i] ? CompressedPostings.fromRecord(record).without(purged) : null;
+                if (readers[i].next()) {
+                    heads.add(i);
+                }
+                while (!heads.isEmpty() && readers[heads.peek()].term.equals(term)) {
+                    int j = heads.poll();
+                    if (postings == null) {
+                        postings = CompressedPostings.fromRecord(record);
+                    }
+                    CompressedPostings more = CompressedPostings.fromRecord(
+                            inputs.get(j).index.readData(readers[j].ptr, readers[j].size));
+                    postings.append(purge[j] ? more.without(purged) : more);
+                    if (readers[j].next()) {
+                        heads.add(j);
+                    }
+                }
+                if (postings == null) {
+                    merged.writeRecord(term, record);
+                } else if (postings.size() > 0) {
+                    merged.writeTerm(term, postings);
+                }
+            }
+        } finally {
+            for (PersistentHashedIndex.TermsReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+        merged.writeDictionary();
+        // The names and lengths are copied from the inputs' own doc info, not
+        // from Index.docNames, which the indexer and the searches use meanwhile
+        merged.writeDocInfo(new DocInfoStore.Source() {
+            public String name(int docID) {
+                DocInfoStore store = docInfo(inputs, docID);
+                return store == null || purged.get(docID) ? null : store.name(docID);
+            }
+
+            public Integer length(int docID) {
+                DocInfoStore store = docInfo(inputs, docID);
+                return store == null || purged.get(docID) ? null : store.length(docID);
+            }
+        });
+        merged.openDictionary();
+
+        searchLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                List<Segment> live = new ArrayList<Segment>(segments);
+                int from = live.indexOf(first);
+                live.subList(from, from + inputs.size()).clear();
+                live.add(from, new Segment(name, first.firstDocID, last.endDocID, merged));
+                publish(live);
+                // No live segment holds the purged documents any more. The
+                // manifest is saved by the next indexing run, not here, since
+                // that run may have added files whose segment is not live yet.
+                manifest.purge(purged);
+                deletedDocs = manifest.deletedDocs();
+            }
+            for (Segment input : inputs) {
+                input.index.close();
+            }
+        } finally {
+            searchLock.writeLock().unlock();
+        }
+        for (Segment input : inputs) {
+            deleteSegment(new File(input.index.indexDir));
+        }
+        System.err.println("Merged " + inputs.size() + " segments into " + name + " in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * The doc info of the segment whose range holds <code>docID</code>.
+     */
+    private static DocInfoStore docInfo(List<Segment> segments, int docID) {
+        for (Segment segment : segments) {
+            if (docID >= segment.firstDocID && docID < segment.endDocID) {
+                return segment.index.docInfo;
+            }
+        }
+        return null;
+    }
+
+    private static void deleteSegment(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Waits until the background compaction has nothing left to do.
+     */
+    public void awaitCompaction() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        compactor.execute(done::countDown);
+        done.await();
+    }
+}
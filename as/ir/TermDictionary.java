@@ -0,0 +1,251 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Assigns dense integer ids (0, 1, 2, ...) to terms in the order they are
+ * first seen. Every term string is stored once, in <code>terms</code>; the
+ * lookup table is an open-addressing hash table holding only ids.
+ * <p>
+ * The dictionary may be shared by several indexing threads. Lookups run as
+ * optimistic reads that are retried under a read lock if a term was added
+ * meanwhile, so only the (rare) additions of new terms take a write lock.
+ */
+public class TermDictionary {
+
+    /**
+     * "IRTD" in ASCII.
+     */
+    public static final int MAGIC = 0x49525444;
+
+    public static final int VERSION = 1;
+
+    /**
+     * Returned by a lookup that saw the tables while they were being changed.
+     */
+    private static final int RETRY = -2;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * The terms, indexed by their ids.
+     */
+    private String[] terms = new String[1024];
+
+    /**
+     * Number of terms in the dictionary.
+     */
+    private int size = 0;
+
+    /**
+     * Hash table of term ids plus one (0 marks a free slot), with linear
+     * probing. Its length is a power of two and at least twice the size.
+     */
+    private int[] table = new int[2048];
+
+    /**
+     * Returns the id of a term, giving it the next free id if it has none yet.
+     */
+    public int add(String term) {
+        int id = getID(term);
+        if (id >= 0) {
+            return id;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int[] table = this.table;
+            int slot = slot(term, table);
+            while (table[slot] != 0) {
+                id = table[slot] - 1;
+                if (terms[id].equals(term)) {
+                    return id;
+                }
+                slot = (slot + 1) & (table.length - 1);
+            }
+            id = size;
+            if (id == terms.length) {
+                terms = Arrays.copyOf(terms, terms.length * 2);
+            }
+            terms[id] = term;
+            table[slot] = id + 1;
+            size++;
+            if (2 * size > table.length) {
+                rehash();
+            }
+            return id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the id of a term, or -1 if the term is not in the dictionary.
+     */
+    public int getID(String term) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int id = find(term);
+            if (id != RETRY && lock.validate(stamp)) {
+                return id;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(term);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Looks a term up without locking. Returns RETRY if the tables were seen
+     * in an inconsistent state.
+     */
+    private int find(String term) {
+        int[] table = this.table;
+        String[] terms = this.terms;
+        int slot = slot(term, table);
+        for (int probes = 0; probes < table.length; probes++) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (id >= terms.length || terms[id] == null) {
+                return RETRY;
+            }
+            if (terms[id].equals(term)) {
+                return id;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return RETRY;
+    }
+
+    /**
+     * Returns the term with the given id.
+     */
+    public String getTerm(int id) {
+        long stamp = lock.tryOptimisticRead();
+        String[] terms = this.terms;
+        String term = id < terms.length ? terms[id] : null;
+        if (term != null && lock.validate(stamp)) {
+            return term;
+        }
+        stamp = lock.readLock();
+        try {
+            return this.terms[id];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Number of terms in the dictionary. Valid ids are 0 to size()-1.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Writes the terms to a file in id order: a header, the end offset of
+     * every term and the UTF-8 bytes of all terms.
+     */
+    public void write(File file) throws IOException {
+        try (FileOutputStream fout = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16))) {
+            write(out);
+            out.flush();
+            fout.getChannel().force(false);
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            byte[][] bytes = new byte[size][];
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            int end = 0;
+            for (int id = 0; id < size; id++) {
+                bytes[id] = terms[id].getBytes(StandardCharsets.UTF_8);
+                end += bytes[id].length;
+                out.writeInt(end);
+            }
+            for (int id = 0; id < size; id++) {
+                out.write(bytes[id]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds the terms of a file written by <code>write</code>, which get the
+     * same ids as when they were written if the dictionary was empty (or
+     * held the same first terms).
+     *
+     * @throws IOException if the terms would get other ids.
+     */
+    public void read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            read(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+    }
+
+    /**
+     * Adds the terms written by <code>write</code> at the position of the
+     * buffer, and moves the position past them.
+     */
+    public void read(ByteBuffer in) throws IOException {
+        if (in.remaining() < 12 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("The term list has the wrong format; the index has to be rebuilt.");
+        }
+        int count = in.getInt();
+        int[] ends = new int[count];
+        in.asIntBuffer().get(ends);
+        in.position(in.position() + 4 * count);
+        byte[] bytes = new byte[count == 0 ? 0 : ends[count - 1]];
+        in.get(bytes);
+        int start = 0;
+        for (int id = 0; id < count; id++) {
+            String term = new String(bytes, start, ends[id] - start, StandardCharsets.UTF_8);
+            if (add(term) != id) {
+                throw new IOException("The terms do not match the dictionary; the index has to be rebuilt.");
+            }
+            start = ends[id];
+        }
+    }
+
+    private static int slot(String term, int[] table) {
+        int h = term.hashCode();
+        return (h ^ (h >>> 16)) & (table.length - 1);
+    }
+
+    private void rehash() {
+        int[] grown = new int[table.length * 2];
+        for (int id = 0; id < size; id++) {
+            int slot = slot(terms[id], grown);
+            while (grown[slot] != 0) {
+                slot = (slot + 1) & (grown.length - 1);
+            }
+            grown[slot] = id + 1;
+        }
+        table = grown;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+/**
+ * Variable-byte encoding of non-negative integers. Every byte holds seven bits
+ * of the value, least significant group first, and the high bit is set on all
+ * bytes except the last one.
+ */
+public final class VByte {
+
+    /**
+     * The maximal number of bytes needed for one int.
+     */
+    public static final int MAX_BYTES = 5;
+
+    private VByte() {
+    }
+
+    /**
+     * Writes <code>value</code> into <code>buf</code> starting at
+     * <code>pos</code>. The buffer must have room for at least
+     * <code>MAX_BYTES</code> more bytes.
+     *
+     * @return The position after the last written byte.
+     */
+    public static int write(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Reads variable-byte encoded ints from a byte array.
+     */
+    public static class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        public Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        public int readInt() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = buf[pos++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        public int position() {
+            return pos;
+        }
+    }
+
+    /**
+     * Returns a buffer holding the first <code>length</code> bytes of
+     * <code>buf</code> with room for at least <code>extra</code> more bytes.
+     */
+    public static byte[] ensureCapacity(byte[] buf, int length, int extra) {
+        if (length + extra <= buf.length) {
+            return buf;
+        }
+        byte[] grown = new byte[Math.max(buf.length * 2, length + extra)];
+        System.arraycopy(buf, 0, grown, 0, length);
+        return grown;
+    }
+
+    /**
+     * Returns a buffer holding the first <code>length</code> ints of
+     * <code>buf</code> with room for at least one more int.
+     */
+    public static int[] ensureCapacity(int[] buf, int length) {
+        if (length < buf.length) {
+            return buf;
+        }
+        int[] grown = new int[Math.max(4, buf.length * 2)];
+        System.arraycopy(buf, 0, grown, 0, length);
+        return grown;
+    }
+}